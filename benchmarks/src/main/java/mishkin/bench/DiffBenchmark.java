@@ -0,0 +1,85 @@
+package mishkin.bench;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Working out a plan from the source and destination indexes, with the map lookups of the usual
+ * diff and with the merge join of -mergeJoin. One track in a hundred has a changed tag, one in
+ * two hundred is missing from the destination and the destination has one in two hundred extra.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class DiffBenchmark {
+    @Param({ "10000", "100000", "1000000" })
+    public int entries;
+
+    private Object sync;
+    private Map<String, Object> srcMap;
+    private Map<String, Object> dstMap;
+    private Object srcIndex;
+    private Object dstIndex;
+
+    @Setup
+    public void setUp() {
+        Path dstRoot = Paths.get("/music/dst");
+        Path srcRoot = Paths.get("/music/src");
+        sync = Sync.newSync(Arrays.asList(dstRoot.toString(), srcRoot.toString()));
+        srcMap = new HashMap<String, Object>();
+        dstMap = new HashMap<String, Object>();
+        srcIndex = Sync.newIndex();
+        dstIndex = Sync.newIndex();
+        for (int track = 0; track < entries + entries / 200; track++) {
+            if (track < entries) {
+                Object src = Library.entry(srcRoot, track, "m4a");
+                srcMap.put(Library.key(track), src);
+                Sync.add(srcIndex, src);
+            }
+            if (track % 200 != 199) {
+                String[] fields = Library.fields(track);
+                if (track % 100 == 0) {
+                    fields[0] = "Changed";
+                }
+                Object dst = Sync.entry(Library.path(dstRoot, track, "mp3").toString(), 3_000_000, 1_500_000_000_000L,
+                        Library.key(track), fields, 180 + track % 120, 192);
+                dstMap.put(Library.key(track), dst);
+                Sync.add(dstIndex, dst);
+            }
+        }
+    }
+
+    // The diff empties the destination map, so it gets a copy; makePlan builds the map anyway
+    @Benchmark
+    public Object hashDiff() {
+        Object plan = Sync.newPlan();
+        Sync.diff(sync, plan, srcMap, new HashMap<String, Object>(dstMap));
+        return plan;
+    }
+
+    @Benchmark
+    public Object mergeJoin() {
+        Object plan = Sync.newPlan();
+        Sync.mergeJoin(sync, plan, srcIndex, dstIndex);
+        return plan;
+    }
+}
@@ -0,0 +1,85 @@
+package mishkin.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Saving and loading the index, and looking up every file in a loaded index as a scan of an
+ * unchanged tree does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class IndexBenchmark {
+    @Param({ "10000", "100000", "1000000" })
+    public int entries;
+
+    private Path dir;
+    private Object index;
+    private Path savedPath;
+    private Path loadedPath;
+    private Path[] paths;
+    private BasicFileAttributes[] attributes;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("benchindex");
+        savedPath = dir.resolve("saved.idx");
+        loadedPath = dir.resolve("loaded.idx");
+
+        Path root = Paths.get("/music");
+        index = Sync.newIndex();
+        paths = new Path[entries];
+        attributes = new BasicFileAttributes[entries];
+        for (int track = 0; track < entries; track++) {
+            Sync.add(index, Library.entry(root, track, "m4a"));
+            paths[track] = Library.path(root, track, "m4a");
+            attributes[track] = Library.attributes(track);
+        }
+        Sync.save(index, loadedPath);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        index = null;
+        Library.deleteTree(dir);
+    }
+
+    @Benchmark
+    public void save() {
+        Sync.save(index, savedPath);
+    }
+
+    @Benchmark
+    public Object load() {
+        return Sync.load(loadedPath);
+    }
+
+    @Benchmark
+    public void loadAndLookUp(Blackhole blackhole) {
+        Object loaded = Sync.load(loadedPath);
+        for (int i = 0; i < paths.length; i++) {
+            blackhole.consume(Sync.get(loaded, paths[i], attributes[i]));
+        }
+    }
+}
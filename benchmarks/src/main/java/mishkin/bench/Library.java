@@ -0,0 +1,211 @@
+package mishkin.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jaudiotagger.audio.AudioFile;
+import org.jaudiotagger.audio.AudioFileIO;
+import org.jaudiotagger.tag.FieldKey;
+import org.jaudiotagger.tag.Tag;
+
+/**
+ * Synthetic music libraries: index entries for the in-memory benchmarks, and trees of real tagged
+ * files for the scan benchmarks. Tracks are numbered from 0, twelve to an album and ten albums
+ * to an artist, and their tags are made from those numbers so runs are repeatable.
+ */
+final class Library {
+    static final int TRACKS_PER_ALBUM = 12;
+    static final int ALBUMS_PER_ARTIST = 10;
+
+    // One second of silence as MPEG-1 layer III at 128 kbit/s and 44.1 kHz: 38 frames of 417 bytes
+    private static final int FRAME_COUNT = 38;
+    private static final int FRAME_SIZE = 417;
+    private static final byte[] FRAME_HEADER = { (byte) 0xFF, (byte) 0xFB, (byte) 0x90, (byte) 0x64 };
+
+    // A tagged m4a file to copy for the m4a part of a tree; jaudiotagger can't create one from nothing
+    private static final String M4A_TEMPLATE = System.getProperty("bench.m4a");
+
+    static {
+        Logger.getLogger("org.jaudiotagger").setLevel(Level.OFF);
+    }
+
+    private Library() {
+    }
+
+    static String album(int track) {
+        return String.format("Album %d", track / TRACKS_PER_ALBUM);
+    }
+
+    static String artist(int track) {
+        return String.format("Artist %d", track / (TRACKS_PER_ALBUM * ALBUMS_PER_ARTIST));
+    }
+
+    static String title(int track) {
+        return String.format("Title %d", track);
+    }
+
+    static int trackNo(int track) {
+        return track % TRACKS_PER_ALBUM + 1;
+    }
+
+    // Built the same way as MusicFileSync.readEntry builds it from the tags
+    static String key(int track) {
+        return String.format("%s|%d|%d|%s", album(track), 1, trackNo(track), title(track));
+    }
+
+    // The path of a track below a tree, with the given extension
+    static Path path(Path root, int track, String extension) {
+        return root.resolve(artist(track)).resolve(album(track))
+                .resolve(String.format("%02d %s.%s", trackNo(track), title(track), extension));
+    }
+
+    static String[] fields(int track) {
+        String[] fields = new String[Sync.FIELD_COUNT];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = String.format("Value %d of %s", i, title(track));
+        }
+        return fields;
+    }
+
+    // An index entry as a scan of the track's file would have made it
+    static Object entry(Path root, int track, String extension) {
+        return Sync.entry(path(root, track, extension).toString(), 4_000_000 + track, 1_500_000_000_000L + track * 1000L,
+                key(track), fields(track), 180 + track % 120, 256);
+    }
+
+    // Attributes that match those recorded by entry()
+    static BasicFileAttributes attributes(int track) {
+        return new FakeAttributes(4_000_000 + track, 1_500_000_000_000L + track * 1000L);
+    }
+
+    // Entries for tracks first to first + count - 1
+    static List<Object> entries(Path root, int first, int count, String extension) {
+        List<Object> entries = new ArrayList<Object>(count);
+        for (int track = first; track < first + count; track++) {
+            entries.add(entry(root, track, extension));
+        }
+        return entries;
+    }
+
+    /**
+     * Writes a tree of tagged files, every fourth one an m4a if an m4a template was given with
+     * -Dbench.m4a=... and an mp3 otherwise.
+     */
+    static void writeTree(Path root, int count) throws Exception {
+        Path mp3 = Files.createTempFile("bench", ".mp3");
+        Path m4a = M4A_TEMPLATE == null ? null : Paths.get(M4A_TEMPLATE);
+        try {
+            writeSilence(mp3);
+            for (int track = 0; track < count; track++) {
+                boolean isM4a = m4a != null && track % 4 == 0;
+                Path path = path(root, track, isM4a ? "m4a" : "mp3");
+                Files.createDirectories(path.getParent());
+                Files.copy(isM4a ? m4a : mp3, path);
+                tag(path, track);
+            }
+        } finally {
+            Files.deleteIfExists(mp3);
+        }
+    }
+
+    private static void writeSilence(Path path) throws IOException {
+        try (OutputStream out = Files.newOutputStream(path)) {
+            byte[] frame = new byte[FRAME_SIZE];
+            System.arraycopy(FRAME_HEADER, 0, frame, 0, FRAME_HEADER.length);
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                out.write(frame);
+            }
+        }
+    }
+
+    private static void tag(Path path, int track) throws Exception {
+        AudioFile file = AudioFileIO.read(path.toFile());
+        Tag tag = file.getTagOrCreateAndSetDefault();
+        tag.setField(FieldKey.ARTIST, artist(track));
+        tag.setField(FieldKey.ALBUM_ARTIST, artist(track));
+        tag.setField(FieldKey.ALBUM, album(track));
+        tag.setField(FieldKey.TITLE, title(track));
+        tag.setField(FieldKey.TRACK, Integer.toString(trackNo(track)));
+        tag.setField(FieldKey.DISC_NO, "1");
+        tag.setField(FieldKey.GENRE, "Rock");
+        tag.setField(FieldKey.YEAR, Integer.toString(1960 + track % 60));
+        file.commit();
+    }
+
+    static void deleteTree(Path root) throws IOException {
+        if (! Files.exists(root)) {
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // Just enough of a file's attributes to look up an index entry
+    static final class FakeAttributes implements BasicFileAttributes {
+        private final long size;
+        private final FileTime lastModified;
+
+        FakeAttributes(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = FileTime.fromMillis(lastModified);
+        }
+
+        public FileTime lastModifiedTime() {
+            return lastModified;
+        }
+
+        public FileTime lastAccessTime() {
+            return lastModified;
+        }
+
+        public FileTime creationTime() {
+            return lastModified;
+        }
+
+        public boolean isRegularFile() {
+            return true;
+        }
+
+        public boolean isDirectory() {
+            return false;
+        }
+
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        public boolean isOther() {
+            return false;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public Object fileKey() {
+            return null;
+        }
+    }
+}
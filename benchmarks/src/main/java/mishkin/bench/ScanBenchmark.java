@@ -0,0 +1,69 @@
+package mishkin.bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scanning a tree of tagged files, with no previous index so that every file's tags are read,
+ * and with the index saved by a previous scan so that none are. The files stay in the OS cache
+ * between iterations, so this measures parsing and bookkeeping rather than the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScanBenchmark {
+    @Param({ "1000", "10000" })
+    public int files;
+
+    @Param({ "1", "4", "16" })
+    public int threads;
+
+    private Path dir;
+    private Path tree;
+    private Object empty;
+    private Object previous;
+
+    @Setup
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("benchscan");
+        tree = dir.resolve("music");
+        Library.writeTree(tree, files);
+        empty = Sync.newIndex();
+        Path indexPath = dir.resolve("src.idx");
+        Sync.save(Sync.scan(tree, threads, empty), indexPath);
+        previous = Sync.load(indexPath);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        previous = null;
+        Library.deleteTree(dir);
+    }
+
+    @Benchmark
+    public Object coldScan() {
+        return Sync.scan(tree, threads, empty);
+    }
+
+    @Benchmark
+    public Object incrementalScan() {
+        return Sync.scan(tree, threads, previous);
+    }
+}
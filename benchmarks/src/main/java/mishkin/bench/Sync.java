@@ -0,0 +1,199 @@
+package mishkin.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Access to the sync classes. They live in the default package, which can't be imported, and JMH
+ * won't generate benchmarks in the default package, so they are reached through method handles.
+ * The handles are constants, so the JIT can inline calls through them like direct calls.
+ */
+final class Sync {
+    private static final Class<?> TRACK_ENTRY = type("TrackEntry");
+    private static final Class<?> TRACK_INDEX = type("TrackIndex");
+    private static final Class<?> SYNC_PLAN = type("SyncPlan");
+    private static final Class<?> TAG_SCANNER = type("TagScanner");
+    private static final Class<?> MUSIC_FILE_SYNC = type("MusicFileSync");
+    private static final Class<?> SIDE = type("MusicFileSync$Side");
+
+    private static final MethodHandle NEW_ENTRY = constructor(TRACK_ENTRY,
+            String.class, long.class, long.class, String.class, String[].class, int.class, int.class);
+    private static final MethodHandle NEW_INDEX = constructor(TRACK_INDEX);
+    private static final MethodHandle INDEX_ADD = method(TRACK_INDEX, "add", TRACK_ENTRY);
+    private static final MethodHandle INDEX_GET = method(TRACK_INDEX, "get", Path.class, BasicFileAttributes.class);
+    private static final MethodHandle INDEX_SIZE = method(TRACK_INDEX, "size");
+    private static final MethodHandle INDEX_SAVE = method(TRACK_INDEX, "save", Path.class);
+    private static final MethodHandle INDEX_LOAD = method(TRACK_INDEX, "load", Path.class);
+    private static final MethodHandle NEW_PLAN = constructor(SYNC_PLAN);
+    private static final MethodHandle NEW_SCANNER = constructor(TAG_SCANNER, SIDE, int.class, TRACK_INDEX, SYNC_PLAN);
+    private static final MethodHandle SCAN = method(TAG_SCANNER, "scan", Path.class, Map.class, TRACK_INDEX);
+    private static final MethodHandle NEW_SYNC = constructor(MUSIC_FILE_SYNC, List.class);
+    private static final MethodHandle DIFF = method(MUSIC_FILE_SYNC, "diff", SYNC_PLAN, Map.class, Map.class);
+    private static final MethodHandle MERGE_JOIN = method(MUSIC_FILE_SYNC, "mergeJoin", SYNC_PLAN, TRACK_INDEX, TRACK_INDEX);
+    private static final Object SOURCE = SIDE.getEnumConstants()[0];
+
+    static final int FIELD_COUNT = fieldCount();
+
+    private Sync() {
+    }
+
+    static Object entry(String path, long size, long lastModified, String key, String[] fields, int duration, int bitrate) {
+        try {
+            return NEW_ENTRY.invoke(path, size, lastModified, key, fields, duration, bitrate);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static Object newIndex() {
+        try {
+            return NEW_INDEX.invoke();
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void add(Object index, Object entry) {
+        try {
+            INDEX_ADD.invoke(index, entry);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static Object get(Object index, Path path, BasicFileAttributes attrs) {
+        try {
+            return INDEX_GET.invoke(index, path, attrs);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static int size(Object index) {
+        try {
+            return (int) INDEX_SIZE.invoke(index);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void save(Object index, Path path) {
+        try {
+            INDEX_SAVE.invoke(index, path);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static Object load(Path path) {
+        try {
+            return INDEX_LOAD.invoke(path);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static Object newPlan() {
+        try {
+            return NEW_PLAN.invoke();
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    // Scans a tree as a source, returning the new index
+    static Object scan(Path dir, int threads, Object previous) {
+        Object index = newIndex();
+        try {
+            Object scanner = NEW_SCANNER.invoke(SOURCE, threads, previous, newPlan());
+            SCAN.invoke(scanner, dir, new HashMap<String, Object>(), index);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+        return index;
+    }
+
+    // A sync with the given destination and source roots, used only for diffing
+    static Object newSync(List<String> roots) {
+        try {
+            return NEW_SYNC.invoke(roots);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void diff(Object sync, Object plan, Map<String, Object> srcMap, Map<String, Object> dstMap) {
+        try {
+            DIFF.invoke(sync, plan, srcMap, dstMap);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void mergeJoin(Object sync, Object plan, Object srcIndex, Object dstIndex) {
+        try {
+            MERGE_JOIN.invoke(sync, plan, srcIndex, dstIndex);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return new IllegalStateException(e);
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> type, Class<?>... params) {
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor(params);
+            return MethodHandles.lookup().unreflectConstructor(accessible(constructor));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle method(Class<?> type, String name, Class<?>... params) {
+        try {
+            Method method = type.getDeclaredMethod(name, params);
+            return MethodHandles.lookup().unreflect(accessible(method));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static <T extends AccessibleObject> T accessible(T object) {
+        object.setAccessible(true);
+        return object;
+    }
+
+    private static int fieldCount() {
+        try {
+            Field field = MUSIC_FILE_SYNC.getDeclaredField("SYNC_FIELDS");
+            return ((Object[]) accessible(field).get(null)).length;
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What SyncITunesAndFiles knew about each track when it last reconciled it: the track's
+ * modification date in the library and the size and modification time of its file, by the
+ * track's persistent ID. A track is only reconciled again when one of them has changed. A track
+ * is not recorded when writing its tags failed or a fix was left undone because -updateFile or
+ * -updateITunes wasn't given, so a later run with those options still sees it.
+ *
+ * The file starts with a hash of the rules the tracks were reconciled with; when the rules have
+ * changed the checkpoint is ignored and every track is reconciled again.
+ *
+ * The file has one track per line: persistent ID, library modification date, file size and file
+ * modification time, separated by tabs. Each track is appended to the file as soon as it has
+ * been reconciled, a later line replacing an earlier one, so a run that is killed loses none of
+ * its work; the next run starts with the tracks that weren't done. save() then rewrites the file
+ * with just the tracks of the run.
+ */
+class Checkpoint {
+    private static class Entry {
+        final long modified;
+        final long size;
+        final long lastModified;
+
+        Entry(long modified, long size, long lastModified) {
+            this.modified = modified;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private static final String RULES = "#rules";
+
+    private final Path path;
+    private final String rulesHash;
+    private final Map<String, Entry> previous;
+    // Whether the file on disk was made with the same rules, so tracks can be appended to it
+    private boolean appendable;
+    // Tracks reconciled in this run, or unchanged since the last one
+    private final Map<String, Entry> current = new ConcurrentHashMap<String, Entry>();
+    private BufferedWriter appender;
+
+    private Checkpoint(Path path, String rulesHash, Map<String, Entry> previous, boolean appendable) {
+        this.path = path;
+        this.rulesHash = rulesHash;
+        this.previous = previous;
+        this.appendable = appendable;
+    }
+
+    // A missing or unreadable file, or one made with other rules, gives an empty checkpoint, so
+    // everything is reconciled
+    static Checkpoint load(Path path, String rulesHash) {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        if (Files.exists(path)) {
+            try (BufferedReader r = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String header = r.readLine();
+                if (header == null || ! header.equals(RULES + "\t" + rulesHash)) {
+                    System.out.format("Checkpoint %s was made with other rules, reconciling every track\n", path);
+                    return new Checkpoint(path, rulesHash, entries, false);
+                }
+                while (true) {
+                    String line = r.readLine();
+                    if (line == null) {
+                        break;
+                    }
+                    String[] split = line.split("\t");
+                    try {
+                        entries.put(split[0], new Entry(Long.parseLong(split[1]), Long.parseLong(split[2]), Long.parseLong(split[3])));
+                    } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                        // Last line cut short by a crash
+                    }
+                }
+            } catch (IOException e) {
+                System.out.format("Ignoring checkpoint %s (%s)\n", path, e);
+                return new Checkpoint(path, rulesHash, new HashMap<String, Entry>(), false);
+            }
+            return new Checkpoint(path, rulesHash, entries, true);
+        }
+        return new Checkpoint(path, rulesHash, entries, false);
+    }
+
+    /**
+     * Tells whether the track and its file are as they were when the track was last reconciled,
+     * in which case it is kept in the checkpoint. Tracks without a persistent ID or modification
+     * date are never unchanged.
+     */
+    boolean isUnchanged(String persistentId, long modified, Path file) {
+        Entry entry = persistentId == null ? null : previous.get(persistentId);
+        if (entry == null || modified == 0 || entry.modified != modified) {
+            return false;
+        }
+        BasicFileAttributes attrs = attributes(file);
+        if (attrs == null || attrs.size() != entry.size || attrs.lastModifiedTime().toMillis() != entry.lastModified) {
+            return false;
+        }
+        current.put(persistentId, entry);
+        return true;
+    }
+
+    // Records a track as reconciled, with its file as it is now
+    void record(String persistentId, long modified, Path file) throws IOException {
+        BasicFileAttributes attrs = attributes(file);
+        if (persistentId != null && modified != 0 && attrs != null) {
+            Entry entry = new Entry(modified, attrs.size(), attrs.lastModifiedTime().toMillis());
+            current.put(persistentId, entry);
+            synchronized (this) {
+                if (appender == null && appendable) {
+                    appender = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                } else if (appender == null) {
+                    // What was there was made with other rules
+                    appender = Files.newBufferedWriter(path, StandardCharsets.UTF_8);
+                    appender.write(header());
+                    appendable = true;
+                }
+                appender.write(line(persistentId, entry));
+                appender.flush();
+            }
+        }
+    }
+
+    // Saves the tracks of this run; tracks not seen are dropped
+    synchronized void save() throws IOException {
+        if (appender != null) {
+            appender.close();
+            appender = null;
+        }
+        Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (PrintStream w = new PrintStream(Files.newOutputStream(tmpPath), false, "UTF-8")) {
+            w.print(header());
+            for (Map.Entry<String, Entry> e : current.entrySet()) {
+                w.print(line(e.getKey(), e.getValue()));
+            }
+        }
+        Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private String header() {
+        return String.format("%s\t%s\n", RULES, rulesHash);
+    }
+
+    private static String line(String persistentId, Entry entry) {
+        return String.format("%s\t%d\t%d\t%d\n", persistentId, entry.modified, entry.size, entry.lastModified);
+    }
+
+    private static BasicFileAttributes attributes(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
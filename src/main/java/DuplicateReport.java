@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Finds the files that share a key, across all the source trees and within the destination,
+ * from the indexes of the last scan, so no tags are read. A key in both the source and the
+ * destination is a track and its copy, not a duplicate.
+ *
+ * The files of each key are ranked: highest bitrate first, then the preferred format for the
+ * side, then the largest and then the newest file. The first is kept. The report is written as
+ * JSON, and the plan to resolve the duplicates can be saved to be carried out with -executePlan.
+ * The plan deletes all but the first of each key in the destination only; duplicates in the
+ * source are recorded in it but never deleted, since the source is the master library.
+ */
+class DuplicateReport {
+    // Sources are ripped to m4a; the destination is made of mp3 transcodes
+    private static final String[] SOURCE_FORMATS = {"m4a", "mp3"};
+    private static final String[] DESTINATION_FORMATS = {"mp3", "m4a"};
+
+    private final List<List<TrackEntry>> sourceGroups;
+    private final List<List<TrackEntry>> destinationGroups;
+
+    DuplicateReport(TrackIndex srcIndex, TrackIndex dstIndex) {
+        sourceGroups = groups(srcIndex, SOURCE_FORMATS);
+        destinationGroups = groups(dstIndex, DESTINATION_FORMATS);
+    }
+
+    // Groups of two or more files with the same key, each best first, in order of key
+    private static List<List<TrackEntry>> groups(TrackIndex index, String[] formats) {
+        Map<String, List<TrackEntry>> byKey = new HashMap<String, List<TrackEntry>>();
+        for (TrackEntry entry : index.entries()) {
+            if (entry.key != null) {
+                byKey.computeIfAbsent(entry.key, key -> new ArrayList<TrackEntry>(1)).add(entry);
+            }
+        }
+        Comparator<TrackEntry> bestFirst = Comparator.<TrackEntry>comparingInt(entry -> -entry.bitrate)
+                .thenComparingInt(entry -> formatRank(entry, formats))
+                .thenComparingLong(entry -> -entry.size)
+                .thenComparingLong(entry -> -entry.lastModified)
+                .thenComparing(entry -> entry.path);
+        List<List<TrackEntry>> groups = new ArrayList<List<TrackEntry>>();
+        for (List<TrackEntry> group : byKey.values()) {
+            if (group.size() > 1) {
+                Collections.sort(group, bestFirst);
+                groups.add(group);
+            }
+        }
+        Collections.sort(groups, Comparator.comparing(group -> group.get(0).key));
+        return groups;
+    }
+
+    private static int formatRank(TrackEntry entry, String[] formats) {
+        String format = format(entry);
+        for (int i = 0; i < formats.length; i++) {
+            if (formats[i].equals(format)) {
+                return i;
+            }
+        }
+        return formats.length;
+    }
+
+    private static String format(TrackEntry entry) {
+        int dot = entry.path.lastIndexOf('.');
+        return dot < 0 ? "" : entry.path.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    int sourceCount() {
+        return sourceGroups.size();
+    }
+
+    int destinationCount() {
+        return destinationGroups.size();
+    }
+
+    // Records each duplicate against the file kept, and deletes it if it is in the destination
+    SyncPlan resolution() {
+        SyncPlan plan = new SyncPlan();
+        addResolution(plan, sourceGroups, false);
+        addResolution(plan, destinationGroups, true);
+        return plan;
+    }
+
+    private static void addResolution(SyncPlan plan, List<List<TrackEntry>> groups, boolean delete) {
+        for (List<TrackEntry> group : groups) {
+            TrackEntry kept = group.get(0);
+            for (TrackEntry other : group.subList(1, group.size())) {
+                plan.addDuplicate(kept.key, kept.path, other.path);
+                if (delete) {
+                    plan.addDelete(kept.key, other.path);
+                }
+            }
+        }
+    }
+
+    void write(Path path) throws IOException {
+        try (PrintStream out = new PrintStream(Files.newOutputStream(path), false, "UTF-8")) {
+            out.print("{\n  \"source\": ");
+            write(out, sourceGroups);
+            out.print(",\n  \"destination\": ");
+            write(out, destinationGroups);
+            out.print("\n}\n");
+        }
+    }
+
+    private static void write(PrintStream out, List<List<TrackEntry>> groups) {
+        out.print("[");
+        String separator = "\n";
+        for (List<TrackEntry> group : groups) {
+            out.format(Locale.ROOT, "%s    { \"key\": %s, \"keep\": %s, \"files\": [", separator,
+                    SyncMetrics.quote(group.get(0).key), SyncMetrics.quote(group.get(0).path));
+            String fileSeparator = "\n";
+            for (TrackEntry entry : group) {
+                out.format(Locale.ROOT, "%s        { \"path\": %s, \"bitrate\": %d, \"format\": %s, \"size\": %d, \"lastModified\": %s }",
+                        fileSeparator, SyncMetrics.quote(entry.path), entry.bitrate, SyncMetrics.quote(format(entry)), entry.size,
+                        SyncMetrics.quote(String.format(Locale.ROOT, "%tFT%<tT%<tz", new Date(entry.lastModified))));
+                fileSeparator = ",\n";
+            }
+            out.print("\n      ] }");
+            separator = ",\n";
+        }
+        out.print(groups.isEmpty() ? "]" : "\n  ]");
+    }
+}
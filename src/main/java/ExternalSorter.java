@@ -0,0 +1,188 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts index entries by key, and within a key by the order they were added in, holding at most
+ * a fixed number of them in memory. Whenever that many have been added they are sorted and
+ * spilled to a temporary file, and sorted() merges the spilled runs.
+ */
+class ExternalSorter implements Closeable {
+    static class Record {
+        final long seq;
+        final TrackEntry entry;
+
+        Record(long seq, TrackEntry entry) {
+            this.seq = seq;
+            this.entry = entry;
+        }
+    }
+
+    private static final Comparator<Record> ORDER = (a, b) -> {
+        int c = a.entry.key.compareTo(b.entry.key);
+        return c != 0 ? c : Long.compare(a.seq, b.seq);
+    };
+
+    private final int chunkSize;
+    private final List<Record> chunk = new ArrayList<Record>();
+    private final List<Path> runs = new ArrayList<Path>();
+    private final List<RunReader> readers = new ArrayList<RunReader>();
+    private long seq = 0;
+
+    ExternalSorter(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    // Entries must have a key
+    void add(TrackEntry entry) throws IOException {
+        chunk.add(new Record(seq++, entry));
+        if (chunk.size() >= chunkSize) {
+            spill();
+        }
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(chunk, ORDER);
+        Path run = Files.createTempFile("mfsort", ".run");
+        runs.add(run);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run), 1 << 16))) {
+            for (Record record : chunk) {
+                write(out, record);
+            }
+        }
+        chunk.clear();
+    }
+
+    // Returns all the entries added, in order. Can only be called once.
+    Iterator<Record> sorted() throws IOException {
+        Collections.sort(chunk, ORDER);
+        if (runs.isEmpty()) {
+            return chunk.iterator();
+        }
+        if (! chunk.isEmpty()) {
+            spill();
+        }
+        final PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>((a, b) -> ORDER.compare(a.current, b.current));
+        for (Path run : runs) {
+            RunReader reader = new RunReader(run);
+            readers.add(reader);
+            if (reader.advance()) {
+                queue.add(reader);
+            }
+        }
+        return new Iterator<Record>() {
+            public boolean hasNext() {
+                return ! queue.isEmpty();
+            }
+
+            public Record next() {
+                RunReader reader = queue.poll();
+                if (reader == null) {
+                    throw new NoSuchElementException();
+                }
+                Record record = reader.current;
+                try {
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return record;
+            }
+        };
+    }
+
+    public void close() throws IOException {
+        for (RunReader reader : readers) {
+            reader.in.close();
+        }
+        for (Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+    }
+
+    private static class RunReader {
+        final DataInputStream in;
+        Record current;
+
+        RunReader(Path run) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), 1 << 16));
+        }
+
+        boolean advance() throws IOException {
+            current = read(in);
+            return current != null;
+        }
+    }
+
+    private static void write(DataOutputStream out, Record record) throws IOException {
+        TrackEntry entry = record.entry;
+        out.writeLong(record.seq);
+        writeString(out, entry.key);
+        writeString(out, entry.path);
+        out.writeLong(entry.size);
+        out.writeLong(entry.lastModified);
+        out.writeInt(entry.duration);
+        out.writeInt(entry.bitrate);
+        out.writeInt(entry.fields.length);
+        for (String field : entry.fields) {
+            writeString(out, field);
+        }
+    }
+
+    private static Record read(DataInputStream in) throws IOException {
+        long seq;
+        try {
+            seq = in.readLong();
+        } catch (EOFException e) {
+            return null;
+        }
+        String key = readString(in);
+        String path = readString(in);
+        long size = in.readLong();
+        long lastModified = in.readLong();
+        int duration = in.readInt();
+        int bitrate = in.readInt();
+        String[] fields = new String[in.readInt()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = readString(in);
+        }
+        return new Record(seq, new TrackEntry(path, size, lastModified, key, fields, duration, bitrate));
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,23 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Stands in for a real encoder when benchmarking the sync engine: it waits for a fixed time, to
+ * simulate the cost of an encode, and then copies the source file to the destination unchanged.
+ */
+class FakeTranscoder implements Transcoder {
+    private final long delayMillis;
+
+    FakeTranscoder(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    public void transcode(Path srcPath, Path dstPath) throws IOException, InterruptedException {
+        if (delayMillis > 0) {
+            Thread.sleep(delayMillis);
+        }
+        Files.copy(srcPath, dstPath, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,92 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Transcodes by running an ffmpeg process per source file. The output of ffmpeg is captured and
+ * reported if it fails.
+ *
+ * When a source file goes to several destinations, a single ffmpeg writes all of them, so the
+ * source is read and decoded once and each output is encoded with the codec and bitrate of the
+ * profile whose tree it is in.
+ */
+class FfmpegTranscoder implements Transcoder {
+    private final String ffmpeg;
+    private final List<Profile> profiles;
+    private final int id3v2Version;
+
+    FfmpegTranscoder(String ffmpeg, List<Profile> profiles, int id3v2Version) {
+        this.ffmpeg = ffmpeg;
+        this.profiles = profiles;
+        this.id3v2Version = id3v2Version;
+    }
+
+    public void transcode(Path srcPath, Path dstPath) throws IOException, InterruptedException {
+        transcode(srcPath, Collections.singletonList(dstPath));
+    }
+
+    public void transcode(Path srcPath, List<Path> dstPaths) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(command(srcPath, dstPaths)).redirectErrorStream(true).start();
+        process.getOutputStream().close();
+        String output = readAll(process.getInputStream());
+        int status = process.waitFor();
+        if (status != 0) {
+            throw new IOException(String.format("ffmpeg returned status %s for %s:\n%s", status, srcPath, output));
+        }
+    }
+
+    // Options given before an output file only apply to that file
+    List<String> command(Path srcPath, List<Path> dstPaths) {
+        List<String> command = new ArrayList<String>();
+        command.add(ffmpeg);
+        command.add("-y");
+        command.add("-loglevel");
+        command.add("error");
+        command.add("-i");
+        command.add(srcPath.toString());
+        for (Path dstPath : dstPaths) {
+            Profile profile = profileFor(dstPath);
+            // codec and bitrate may be null to let ffmpeg choose from the destination file name
+            if (profile != null && profile.codec != null) {
+                command.add("-codec:a");
+                command.add(profile.codec);
+            }
+            if (profile != null && profile.bitrate != null) {
+                command.add("-b:a");
+                command.add(profile.bitrate);
+            }
+            // Only the mp3 muxer, chosen by the file name, writes an ID3v2 tag
+            if (dstPath.getFileName().toString().toLowerCase().endsWith(".mp3")) {
+                command.add("-id3v2_version");
+                command.add(Integer.toString(id3v2Version));
+            }
+            command.add(dstPath.toString());
+        }
+        return command;
+    }
+
+    private Profile profileFor(Path dstPath) {
+        for (Profile profile : profiles) {
+            if (dstPath.startsWith(profile.root)) {
+                return profile;
+            }
+        }
+        return null;
+    }
+
+    private static String readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return new String(out.toByteArray(), Charset.defaultCharset());
+    }
+}
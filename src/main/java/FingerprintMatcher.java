@@ -0,0 +1,131 @@
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pairs a source file whose key has no match at the destination with the destination file made
+ * from it before its tags were changed, so that the destination can be retagged (and moved)
+ * instead of transcoded again.
+ *
+ * A hash of the audio data would not survive transcoding, so the fingerprint is the length of the
+ * track together with where it sits in the tree. A destination file fits when its length is within
+ * a second and it either has the same file name (ignoring the extension) or the same track number.
+ * Files in the same relative directory are tried first; the directory alone is not enough, as most
+ * tracks of an album are about as long as one of the others. Fixing an album name usually moves
+ * the file to a new directory, so when nothing in the directory fits the whole tree is tried. A
+ * source file is only paired when exactly one destination file fits.
+ */
+class FingerprintMatcher {
+    private final Map<String, List<TrackEntry>> byTrack = new HashMap<String, List<TrackEntry>>();
+    private final Map<String, List<TrackEntry>> byName = new HashMap<String, List<TrackEntry>>();
+    // The same, in any directory
+    private final Map<String, List<TrackEntry>> byTrackAnywhere = new HashMap<String, List<TrackEntry>>();
+    private final Map<String, List<TrackEntry>> byNameAnywhere = new HashMap<String, List<TrackEntry>>();
+    private final Set<TrackEntry> matched = new HashSet<TrackEntry>();
+
+    // The destination entries are those whose keys matched no source entry
+    FingerprintMatcher(Path dstRoot, Iterable<TrackEntry> dstEntries) {
+        for (TrackEntry entry : dstEntries) {
+            if (entry.duration <= 0) {
+                continue;
+            }
+            Path relPath = dstRoot.relativize(entry.toPath());
+            String dir = dir(relPath);
+            add(byName, nameKey(dir, relPath, entry.duration), entry);
+            add(byNameAnywhere, nameKey("", relPath, entry.duration), entry);
+            String trackNo = trackNumber(entry.key);
+            if (trackNo != null) {
+                add(byTrack, trackKey(dir, trackNo, entry.duration), entry);
+                add(byTrackAnywhere, trackKey("", trackNo, entry.duration), entry);
+            }
+        }
+    }
+
+    /**
+     * Returns the destination entry made from the source entry, whose path relative to its tree is
+     * given, or null if there is none or more than one candidate. A returned entry is not returned
+     * again.
+     */
+    TrackEntry match(Path relSrcPath, TrackEntry srcEntry) {
+        int duration = srcEntry.duration;
+        if (duration <= 0) {
+            return null;
+        }
+        String trackNo = trackNumber(srcEntry.key);
+        Set<TrackEntry> candidates = candidates(byName, byTrack, dir(relSrcPath), relSrcPath, trackNo, duration);
+        if (candidates.isEmpty()) {
+            candidates = candidates(byNameAnywhere, byTrackAnywhere, "", relSrcPath, trackNo, duration);
+        }
+        if (candidates.size() != 1) {
+            return null;
+        }
+        TrackEntry entry = candidates.iterator().next();
+        matched.add(entry);
+        return entry;
+    }
+
+    boolean isMatched(TrackEntry dstEntry) {
+        return matched.contains(dstEntry);
+    }
+
+    private Set<TrackEntry> candidates(Map<String, List<TrackEntry>> names, Map<String, List<TrackEntry>> tracks,
+            String dir, Path relSrcPath, String trackNo, int duration) {
+        Set<TrackEntry> candidates = new HashSet<TrackEntry>();
+        for (int d = duration - 1; d <= duration + 1; d++) {
+            addUnmatched(candidates, names.get(nameKey(dir, relSrcPath, d)));
+            if (trackNo != null) {
+                addUnmatched(candidates, tracks.get(trackKey(dir, trackNo, d)));
+            }
+        }
+        return candidates;
+    }
+
+    private void addUnmatched(Set<TrackEntry> candidates, List<TrackEntry> entries) {
+        if (entries != null) {
+            for (TrackEntry entry : entries) {
+                if (! matched.contains(entry)) {
+                    candidates.add(entry);
+                }
+            }
+        }
+    }
+
+    private static void add(Map<String, List<TrackEntry>> map, String key, TrackEntry entry) {
+        List<TrackEntry> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<TrackEntry>();
+            map.put(key, list);
+        }
+        list.add(entry);
+    }
+
+    // The track number from a key of album|disc|track|title, or null if there is none or it can't
+    // be told apart because the album or title has a '|' in it
+    private static String trackNumber(String key) {
+        if (key == null) {
+            return null;
+        }
+        String[] parts = key.split("\\|", -1);
+        return parts.length == 4 && ! parts[2].isEmpty() ? parts[2] : null;
+    }
+
+    private static String dir(Path relPath) {
+        Path parent = relPath.getParent();
+        return parent == null ? "" : parent.toString().toLowerCase(Locale.ROOT);
+    }
+
+    private static String trackKey(String dir, String trackNo, int duration) {
+        return String.format("%s|%s|%d", dir, trackNo, duration);
+    }
+
+    private static String nameKey(String dir, Path relPath, int duration) {
+        String name = relPath.getFileName().toString().toLowerCase(Locale.ROOT);
+        int dot = name.lastIndexOf('.');
+        return String.format("%s%s%s|%d", dir, relPath.getFileSystem().getSeparator(), dot < 0 ? name : name.substring(0, dot), duration);
+    }
+}
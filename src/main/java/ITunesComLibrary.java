@@ -0,0 +1,156 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.jvnet.com4j.generated.ClassFactory;
+import org.jvnet.com4j.generated.IITFileOrCDTrack;
+import org.jvnet.com4j.generated.IITTrack;
+import org.jvnet.com4j.generated.IITTrackCollection;
+import org.jvnet.com4j.generated.IiTunes;
+
+/**
+ * The library of a running iTunes, through its COM interface. Only works on Windows, and every
+ * property read is a call into the iTunes process.
+ *
+ * COM offers no way to read several properties at once, so tracks are read a batch at a time:
+ * each field of each track in the batch is read exactly once, through accessors bound when the
+ * library is opened, and the batch is then handed out as records.
+ */
+class ITunesComLibrary implements TrackLibrary {
+    private static final int BATCH_SIZE = 100;
+
+    private static final MethodHandle INT_TO_STRING;
+    private static final MethodHandle PARSE_INT;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            INT_TO_STRING = lookup.findStatic(Integer.class, "toString", MethodType.methodType(String.class, int.class));
+            PARSE_INT = lookup.findStatic(Integer.class, "parseInt", MethodType.methodType(int.class, String.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // Getters are (IITFileOrCDTrack)String and setters (IITFileOrCDTrack,String)void
+    private final Map<String, MethodHandle> getters = new LinkedHashMap<String, MethodHandle>();
+    private final Map<String, MethodHandle> setters = new HashMap<String, MethodHandle>();
+
+    // The fields are the names of IITFileOrCDTrack properties
+    ITunesComLibrary(List<String> fields) {
+        for (String field : fields) {
+            for (Method method : IITFileOrCDTrack.class.getMethods()) {
+                if (method.getName().equals(field)) {
+                    try {
+                        if (method.getParameterTypes().length == 0) {
+                            getters.put(field, getter(method));
+                        } else {
+                            setters.put(field, setter(method));
+                        }
+                    } catch (IllegalAccessException e) {
+                        throw new InternalError(e.toString());
+                    }
+                }
+            }
+            if (! getters.containsKey(field)) {
+                throw new InternalError("No getter found for: " + field);
+            }
+            if (! setters.containsKey(field)) {
+                throw new InternalError("No setter found for: " + field);
+            }
+        }
+    }
+
+    private static MethodHandle getter(Method method) throws IllegalAccessException {
+        MethodHandle handle = MethodHandles.publicLookup().unreflect(method);
+        Class<?> type = method.getReturnType();
+        if (type == int.class) {
+            handle = MethodHandles.filterReturnValue(handle, INT_TO_STRING);
+        } else if (type != String.class) {
+            throw new InternalError(String.format("Unknown return type (%s) for: %s", type, method.getName()));
+        }
+        return handle.asType(MethodType.methodType(String.class, IITFileOrCDTrack.class));
+    }
+
+    private static MethodHandle setter(Method method) throws IllegalAccessException {
+        MethodHandle handle = MethodHandles.publicLookup().unreflect(method);
+        if (method.getParameterTypes()[0] == int.class) {
+            handle = MethodHandles.filterArguments(handle, 1, PARSE_INT);
+        }
+        return handle.asType(MethodType.methodType(void.class, IITFileOrCDTrack.class, String.class));
+    }
+
+    public boolean isWritable() {
+        return true;
+    }
+
+    public void forEachTrack(Filter filter, Consumer<Track> action) {
+        IiTunes iTunes = ClassFactory.createiTunesApp();
+        IITTrackCollection tracks = iTunes.libraryPlaylist().tracks();
+        int count = tracks.count();
+        for (int first = 1; first <= count; first += BATCH_SIZE) {
+            List<Track> batch = new ArrayList<Track>(BATCH_SIZE);
+            for (int i = first; i <= count && i < first + BATCH_SIZE; i++) {
+                Track track = read(iTunes, tracks.item(i), filter);
+                if (track != null) {
+                    batch.add(track);
+                }
+            }
+            for (Track track : batch) {
+                action.accept(track);
+            }
+        }
+    }
+
+    // Returns null for a track that isn't a local file, doesn't pass the filter or can't be read.
+    // The fields are only read once the track has passed the filter.
+    private Track read(IiTunes iTunes, IITTrack item, Filter filter) {
+        IITFileOrCDTrack track = item.queryInterface(IITFileOrCDTrack.class);
+        if (track == null) {
+            return null;
+        }
+        try {
+            String location = track.location();
+            if (location == null) {
+                return null;
+            }
+            String persistentId = String.format("%08X%08X", iTunes.itObjectPersistentIDHigh(track), iTunes.itObjectPersistentIDLow(track));
+            long modified = modified(track);
+            if (! filter.accept(persistentId, modified, location)) {
+                return null;
+            }
+            Map<String, String> values = new HashMap<String, String>();
+            for (Map.Entry<String, MethodHandle> getter : getters.entrySet()) {
+                values.put(getter.getKey(), (String) getter.getValue().invokeExact(track));
+            }
+            return new Track(persistentId, modified, location, values, track);
+        } catch (Throwable e) {
+            System.err.format("Error reading track from iTunes: %s\n", e);
+            return null;
+        }
+    }
+
+    public Track set(Track track, String field, String value) {
+        try {
+            setters.get(field).invokeExact((IITFileOrCDTrack) track.source, value);
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+        return track.with(field, value, modified((IITFileOrCDTrack) track.source));
+    }
+
+    private static long modified(IITFileOrCDTrack track) {
+        Date date = track.modificationDate();
+        return date == null ? 0 : date.getTime();
+    }
+
+    public void close() {
+    }
+}
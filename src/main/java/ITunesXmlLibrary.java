@@ -0,0 +1,206 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * A library exported by iTunes as "iTunes Music Library.xml", which can be read anywhere. The
+ * file is streamed, so only one track is held in memory at a time, and reading stops at the end
+ * of the track list. The library is read-only.
+ *
+ * The file is a property list: the top level dict has a "Tracks" key whose value is a dict of
+ * track IDs, each with a dict of the track's properties.
+ */
+class ITunesXmlLibrary implements TrackLibrary {
+    // Property list keys of the fields
+    private static final Map<String, String> KEYS = new HashMap<String, String>();
+    static {
+        KEYS.put("album", "Album");
+        KEYS.put("albumArtist", "Album Artist");
+        KEYS.put("artist", "Artist");
+        KEYS.put("comment", "Comments");
+        KEYS.put("composer", "Composer");
+        KEYS.put("discNumber", "Disc Number");
+        KEYS.put("discCount", "Disc Count");
+        KEYS.put("genre", "Genre");
+        KEYS.put("name", "Name");
+        KEYS.put("trackNumber", "Track Number");
+    }
+
+    private final Path xmlPath;
+    private final List<String> fields;
+
+    ITunesXmlLibrary(Path xmlPath, List<String> fields) {
+        this.xmlPath = xmlPath;
+        this.fields = fields;
+        for (String field : fields) {
+            if (! KEYS.containsKey(field)) {
+                throw new InternalError("Unknown field: " + field);
+            }
+        }
+    }
+
+    public boolean isWritable() {
+        return false;
+    }
+
+    public void forEachTrack(Filter filter, Consumer<Track> action) throws IOException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // The DOCTYPE points at apple.com; don't fetch it
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(xmlPath), 1 << 16)) {
+            XMLStreamReader r = factory.createXMLStreamReader(in);
+            try {
+                if (! findTracks(r)) {
+                    throw new IOException("No tracks in " + xmlPath);
+                }
+                // Each track is a key holding its ID followed by a dict
+                while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    r.getElementText();
+                    r.nextTag();
+                    Track track = toTrack(readDict(r), filter);
+                    if (track != null) {
+                        action.accept(track);
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException("Error reading " + xmlPath + ": " + e.getMessage(), e);
+        }
+    }
+
+    public Track set(Track track, String field, String value) {
+        throw new UnsupportedOperationException("Library XML is read-only");
+    }
+
+    public void close() {
+    }
+
+    // Returns null for a track that isn't a local file or doesn't pass the filter
+    private Track toTrack(Map<String, String> properties, Filter filter) {
+        String location = toPath(properties.get("Location"));
+        String persistentId = properties.get("Persistent ID");
+        long modified = toMillis(properties.get("Date Modified"));
+        if (location == null || ! filter.accept(persistentId, modified, location)) {
+            return null;
+        }
+        Map<String, String> values = new HashMap<String, String>();
+        for (String field : fields) {
+            String value = properties.get(KEYS.get(field));
+            // iTunes gives 0 for a number that isn't set
+            if (value == null && (field.equals("discNumber") || field.equals("discCount") || field.equals("trackNumber"))) {
+                value = "0";
+            }
+            values.put(field, value);
+        }
+        return new Track(persistentId, modified, location, values, null);
+    }
+
+    // Dates are written as 2015-03-01T12:00:00Z
+    private static long toMillis(String date) {
+        if (date == null) {
+            return 0;
+        }
+        try {
+            return Instant.parse(date).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+
+    // Moves to the start of the dict of tracks
+    private static boolean findTracks(XMLStreamReader r) throws XMLStreamException {
+        int depth = 0;
+        while (r.hasNext()) {
+            int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                // plist, then the top level dict, then its keys
+                if (++depth == 3 && r.getLocalName().equals("key") && r.getElementText().equals("Tracks")) {
+                    r.nextTag();
+                    return true;
+                }
+                if (r.isEndElement()) {
+                    depth--;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        return false;
+    }
+
+    // Reads the dict the reader is at, up to its end, keeping only simple values
+    private static Map<String, String> readDict(XMLStreamReader r) throws XMLStreamException {
+        Map<String, String> values = new HashMap<String, String>();
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String key = r.getElementText();
+            r.nextTag();
+            String type = r.getLocalName();
+            if (type.equals("true") || type.equals("false")) {
+                values.put(key, type);
+                r.nextTag();
+            } else if (type.equals("dict") || type.equals("array")) {
+                skip(r);
+            } else {
+                values.put(key, r.getElementText());
+            }
+        }
+        return values;
+    }
+
+    private static void skip(XMLStreamReader r) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    // Turns a file:// URL such as file://localhost/C:/Music/A%20B.mp3 into a path
+    static String toPath(String url) {
+        if (url == null || ! url.startsWith("file://")) {
+            return null;
+        }
+        String path = url.substring("file://".length());
+        if (path.startsWith("localhost/")) {
+            path = path.substring("localhost".length());
+        }
+        if (path.length() > 2 && path.charAt(2) == ':') {
+            path = path.substring(1);
+        }
+        // Not URLDecoder, which would turn + into a space
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(path.length());
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '%' && i + 2 < path.length()) {
+                bytes.write(Integer.parseInt(path.substring(i + 1, i + 3), 16));
+                i += 2;
+            } else {
+                byte[] encoded = String.valueOf(c).getBytes(StandardCharsets.UTF_8);
+                bytes.write(encoded, 0, encoded.length);
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
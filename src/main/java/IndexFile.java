@@ -0,0 +1,342 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jaudiotagger.tag.FieldKey;
+
+/**
+ * Binary on-disk form of a TrackIndex. The file is memory-mapped when it is read and an entry is
+ * only decoded when it is looked up, so opening even a very large index costs almost nothing.
+ *
+ * Layout (all integers big-endian):
+ * <pre>
+ *   header        int magic, int version, int entryCount, int stringCount, int tableSize, int fieldCount
+ *   field names   fieldCount string ids of the names of the recorded fields
+ *   string table  (stringCount + 1) int offsets of each string within the string data
+ *   entries       entryCount fixed-size records: int dir, int name, long size, long lastModified,
+ *                 int key, int duration, int bitrate and fieldCount ints of field values, all
+ *                 strings as ids or -1 for null
+ *   hash table    tableSize ints, 1 + the number of the entry whose path hashes there, or 0
+ *   string data   UTF-8 bytes of every distinct string, each stored once
+ * </pre>
+ * Paths are stored as a directory string and a file name string, so the directory of an album is
+ * stored once no matter how many tracks it has; likewise for album, artist and genre values.
+ *
+ * An index recorded with a different set of fields than MusicFileSync.SYNC_FIELDS is rejected,
+ * which makes the next scan read every file again.
+ */
+class IndexFile {
+    private static final int MAGIC = 0x4D465349; // "MFSI"
+    static final int VERSION = 4;
+
+    private static final int HEADER_SIZE = 24;
+    // Size of an entry without its field values
+    private static final int BASE_ENTRY_SIZE = 36;
+    private static final int NO_STRING = -1;
+
+    private final ByteBuffer buffer;
+    private final int entryCount;
+    private final int stringCount;
+    private final int tableSize;
+    private final int fieldCount;
+    private final int entrySize;
+    private final int stringTableStart;
+    private final int entriesStart;
+    private final int tableStart;
+    private final int stringsStart;
+    private final String[] strings;
+
+    private IndexFile(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        int length = buffer.capacity();
+        if (length < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an index file");
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported index version " + version);
+        }
+        entryCount = buffer.getInt(8);
+        stringCount = buffer.getInt(12);
+        tableSize = buffer.getInt(16);
+        fieldCount = buffer.getInt(20);
+        if (entryCount < 0 || stringCount < 0 || fieldCount < 0 || tableSize < 0 || Integer.bitCount(tableSize) > 1
+                || tableSize < entryCount) {
+            throw new IOException("Corrupt index header");
+        }
+        // Worked out in longs so that a corrupt count can't wrap around
+        long start = HEADER_SIZE + fieldCount * 4L;
+        long entries = start + (stringCount + 1L) * 4;
+        long table = entries + entryCount * (BASE_ENTRY_SIZE + fieldCount * 4L);
+        long data = table + tableSize * 4L;
+        if (data > length) {
+            throw new IOException("Index is truncated");
+        }
+        entrySize = BASE_ENTRY_SIZE + fieldCount * 4;
+        stringTableStart = (int) start;
+        entriesStart = (int) entries;
+        tableStart = (int) table;
+        stringsStart = (int) data;
+        // The string offsets have to run forward through the string data
+        int previous = 0;
+        for (int i = 0; i <= stringCount; i++) {
+            int offset = buffer.getInt(stringTableStart + i * 4);
+            if (offset < previous || offset > length - stringsStart) {
+                throw new IOException("Corrupt index string table");
+            }
+            previous = offset;
+        }
+        this.strings = new String[stringCount];
+
+        boolean sameFields = fieldCount == MusicFileSync.SYNC_FIELDS.length;
+        for (int i = 0; sameFields && i < fieldCount; i++) {
+            int id = buffer.getInt(HEADER_SIZE + i * 4);
+            sameFields = id >= 0 && id < stringCount && MusicFileSync.SYNC_FIELDS[i].name().equals(string(id));
+        }
+        if (! sameFields) {
+            throw new IOException("Index records different fields");
+        }
+    }
+
+    /**
+     * Maps an index file into memory. If a newer copy was left beside it by a write that couldn't
+     * replace the file, that copy is moved into place first.
+     */
+    static IndexFile open(Path indexPath) throws IOException {
+        Path newPath = newPath(indexPath);
+        if (Files.exists(newPath)) {
+            Files.move(newPath, indexPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Index is too large");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new IndexFile(buffer);
+        }
+    }
+
+    int size() {
+        return entryCount;
+    }
+
+    TrackEntry entry(int i) {
+        return entry(i, true);
+    }
+
+    // Decodes an entry without keeping its strings, so reading through the whole file doesn't
+    // leave all of it in memory
+    TrackEntry decode(int i) {
+        return entry(i, false);
+    }
+
+    private TrackEntry entry(int i, boolean keep) {
+        int pos = entriesStart + i * entrySize;
+        String key = string(buffer.getInt(pos + 24), keep);
+        String[] fields = null;
+        if (key != null) {
+            fields = new String[fieldCount];
+            for (int f = 0; f < fieldCount; f++) {
+                fields[f] = string(buffer.getInt(pos + BASE_ENTRY_SIZE + f * 4), keep);
+            }
+        }
+        return new TrackEntry(
+                string(buffer.getInt(pos), keep) + string(buffer.getInt(pos + 4), keep),
+                buffer.getLong(pos + 8),
+                buffer.getLong(pos + 16),
+                key,
+                fields,
+                buffer.getInt(pos + 28),
+                buffer.getInt(pos + 32));
+    }
+
+    // Returns the entry with the given path, or null if there is none.
+    TrackEntry find(String path) {
+        if (tableSize == 0) {
+            return null;
+        }
+        int split = splitPoint(path);
+        int mask = tableSize - 1;
+        // A table with no free slot would be probed forever
+        for (int probe = 0, slot = hash(path) & mask; probe < tableSize; probe++, slot = (slot + 1) & mask) {
+            int n = buffer.getInt(tableStart + slot * 4);
+            if (n == 0) {
+                return null;
+            }
+            if (n < 0 || n > entryCount) {
+                throw corrupt();
+            }
+            int pos = entriesStart + (n - 1) * entrySize;
+            if (matches(buffer.getInt(pos + 4), path, split, path.length())
+                    && matches(buffer.getInt(pos), path, 0, split)) {
+                return entry(n - 1);
+            }
+        }
+        throw corrupt();
+    }
+
+    private boolean matches(int id, String path, int start, int end) {
+        String s = string(id);
+        return s.length() == end - start && path.regionMatches(start, s, 0, s.length());
+    }
+
+    private String string(int id) {
+        return string(id, true);
+    }
+
+    private String string(int id, boolean keep) {
+        if (id == NO_STRING) {
+            return null;
+        }
+        if (id < 0 || id >= stringCount) {
+            throw corrupt();
+        }
+        String s = strings[id];
+        if (s == null) {
+            int start = buffer.getInt(stringTableStart + id * 4);
+            int end = buffer.getInt(stringTableStart + (id + 1) * 4);
+            byte[] bytes = new byte[end - start];
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(stringsStart + start);
+            dup.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+            if (keep) {
+                strings[id] = s;
+            }
+        }
+        return s;
+    }
+
+    // The header and the string table are checked when the file is opened, but a bad entry is only
+    // found when it is decoded
+    private static UncheckedIOException corrupt() {
+        return new UncheckedIOException(new IOException("Corrupt index entry"));
+    }
+
+    /**
+     * Writes the entries to the index file, going through a temporary copy so that a crash never
+     * leaves a half-written index. If the old file can't be replaced because it is still mapped
+     * (as on Windows) the new copy is left beside it for open() to pick up.
+     */
+    static void write(Collection<TrackEntry> entries, Path indexPath) throws IOException {
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        List<byte[]> stringBytes = new ArrayList<byte[]>();
+        FieldKey[] fieldKeys = MusicFileSync.SYNC_FIELDS;
+        int[] fieldNames = new int[fieldKeys.length];
+        for (int f = 0; f < fieldKeys.length; f++) {
+            fieldNames[f] = intern(fieldKeys[f].name(), ids, stringBytes);
+        }
+        // Ids of the strings of each entry: dir, name, key, then the field values
+        int stride = 3 + fieldKeys.length;
+        int[] records = new int[entries.size() * stride];
+        int tableSize = entries.isEmpty() ? 0 : Integer.highestOneBit(entries.size() * 2 - 1) << 1;
+        int[] table = new int[tableSize];
+
+        int n = 0;
+        for (TrackEntry entry : entries) {
+            int split = splitPoint(entry.path);
+            int r = n * stride;
+            records[r] = intern(entry.path.substring(0, split), ids, stringBytes);
+            records[r + 1] = intern(entry.path.substring(split), ids, stringBytes);
+            records[r + 2] = intern(entry.key, ids, stringBytes);
+            for (int f = 0; f < fieldKeys.length; f++) {
+                records[r + 3 + f] = intern(entry.fields == null ? null : entry.fields[f], ids, stringBytes);
+            }
+            int mask = tableSize - 1;
+            int slot = hash(entry.path) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = ++n;
+        }
+
+        Path tmpPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpPath), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            out.writeInt(stringBytes.size());
+            out.writeInt(tableSize);
+            out.writeInt(fieldKeys.length);
+            for (int id : fieldNames) {
+                out.writeInt(id);
+            }
+            int offset = 0;
+            out.writeInt(offset);
+            for (byte[] bytes : stringBytes) {
+                offset += bytes.length;
+                out.writeInt(offset);
+            }
+            n = 0;
+            for (TrackEntry entry : entries) {
+                int r = n * stride;
+                out.writeInt(records[r]);
+                out.writeInt(records[r + 1]);
+                out.writeLong(entry.size);
+                out.writeLong(entry.lastModified);
+                out.writeInt(records[r + 2]);
+                out.writeInt(entry.duration);
+                out.writeInt(entry.bitrate);
+                for (int f = 3; f < stride; f++) {
+                    out.writeInt(records[r + f]);
+                }
+                n++;
+            }
+            for (int slot : table) {
+                out.writeInt(slot);
+            }
+            for (byte[] bytes : stringBytes) {
+                out.write(bytes);
+            }
+        }
+
+        Path newPath = newPath(indexPath);
+        Files.move(tmpPath, newPath, StandardCopyOption.REPLACE_EXISTING);
+        try {
+            Files.move(newPath, indexPath, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.out.format("Index %s is in use, new index left in %s\n", indexPath, newPath);
+        }
+    }
+
+    private static int intern(String s, Map<String, Integer> ids, List<byte[]> stringBytes) {
+        if (s == null) {
+            return NO_STRING;
+        }
+        Integer id = ids.get(s);
+        if (id == null) {
+            id = stringBytes.size();
+            ids.put(s, id);
+            stringBytes.add(s.getBytes(StandardCharsets.UTF_8));
+        }
+        return id;
+    }
+
+    private static Path newPath(Path indexPath) {
+        return indexPath.resolveSibling(indexPath.getFileName() + ".new");
+    }
+
+    // Index of the first character of the file name within the path
+    private static int splitPoint(String path) {
+        return Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1;
+    }
+
+    private static int hash(String path) {
+        int h = path.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
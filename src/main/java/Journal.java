@@ -0,0 +1,116 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Write-ahead journal for carrying out a SyncPlan. The plan is saved before anything is changed,
+ * and the number of each action is appended to a second file as soon as the action is done. If
+ * the run is killed, the next run finds the journal and carries out only the actions not yet
+ * done, without scanning or diffing again. The journal is removed when a run finishes.
+ *
+ * Every action can be done twice safely: tag updates set the same values again, transcodes
+ * overwrite a partly written file and a rename whose target already exists is taken as done.
+ */
+class Journal {
+    private final Path planPath;
+    private final Path donePath;
+    private final Map<SyncPlan.Action, Integer> numbers = new IdentityHashMap<SyncPlan.Action, Integer>();
+    private final Set<Integer> done = new HashSet<Integer>();
+    private SyncPlan resumed;
+    private BufferedWriter doneWriter;
+
+    Journal(Path planPath) {
+        this.planPath = planPath;
+        this.donePath = planPath.resolveSibling(planPath.getFileName() + ".done");
+    }
+
+    // Whether a run was interrupted
+    boolean exists() {
+        return Files.exists(planPath);
+    }
+
+    // Loads the plan of the interrupted run, remembering which of its actions were done
+    SyncPlan resume() throws IOException {
+        resumed = SyncPlan.load(planPath);
+        number(resumed);
+        if (Files.exists(donePath)) {
+            // A number without its newline may have been cut short by the crash
+            String text = new String(Files.readAllBytes(donePath), StandardCharsets.UTF_8);
+            for (String line : text.substring(0, text.lastIndexOf('\n') + 1).split("\n")) {
+                if (! line.isEmpty()) {
+                    done.add(Integer.parseInt(line));
+                }
+            }
+        }
+        return resumed;
+    }
+
+    int doneCount() {
+        return done.size();
+    }
+
+    // Starts journaling the plan; the resumed plan carries on where it stopped
+    void start(SyncPlan plan) throws IOException {
+        if (plan != resumed) {
+            Path tmpPath = planPath.resolveSibling(planPath.getFileName() + ".tmp");
+            plan.save(tmpPath);
+            Files.deleteIfExists(donePath);
+            Files.move(tmpPath, planPath, StandardCopyOption.REPLACE_EXISTING);
+            numbers.clear();
+            done.clear();
+            number(plan);
+        } else {
+            // Rewritten so that appending doesn't extend a line cut short
+            StringBuilder text = new StringBuilder();
+            for (int number : done) {
+                text.append(number).append('\n');
+            }
+            Path tmpPath = donePath.resolveSibling(donePath.getFileName() + ".tmp");
+            Files.write(tmpPath, text.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmpPath, donePath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        doneWriter = Files.newBufferedWriter(donePath, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private void number(SyncPlan plan) {
+        List<SyncPlan.Action> actions = plan.actions();
+        for (int i = 0; i < actions.size(); i++) {
+            numbers.put(actions.get(i), i);
+        }
+    }
+
+    synchronized boolean isDone(SyncPlan.Action action) {
+        return done.contains(numbers.get(action));
+    }
+
+    // Records the action as done; written through to the file at once
+    synchronized void done(SyncPlan.Action action) {
+        int number = numbers.get(action);
+        done.add(number);
+        try {
+            doneWriter.write(Integer.toString(number));
+            doneWriter.newLine();
+            doneWriter.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Removes the journal once the whole plan has been carried out
+    void finish() throws IOException {
+        doneWriter.close();
+        Files.deleteIfExists(planPath);
+        Files.deleteIfExists(donePath);
+    }
+}
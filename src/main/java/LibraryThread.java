@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Reconciles a library with its files on a pool of workers, while every call into the library
+ * is made on the thread that calls run(). COM objects may only be used on the thread that created
+ * them, so the workers ask that thread to make their changes to the library and wait for it.
+ *
+ * Between tracks the library thread runs the calls the workers have asked for, and only a fixed
+ * number of tracks are handed out ahead of the workers, so the enumeration can't run far ahead
+ * and the library thread is never stuck waiting for a worker that is waiting for it.
+ */
+class LibraryThread {
+    private final TrackLibrary library;
+    private final int threads;
+    private final Queue<FutureTask<?>> calls = new ConcurrentLinkedQueue<FutureTask<?>>();
+    private Thread thread;
+
+    LibraryThread(TrackLibrary library, int threads) {
+        this.library = library;
+        this.threads = threads;
+    }
+
+    // Hands every track that passes the filter to the action on the pool, and returns once all are done
+    void run(TrackLibrary.Filter filter, final Consumer<TrackLibrary.Track> action) throws IOException, InterruptedException {
+        thread = Thread.currentThread();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final Semaphore slots = new Semaphore(threads * 16);
+        try {
+            library.forEachTrack(filter, track -> {
+                try {
+                    while (! slots.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+                        runCalls();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+                executor.execute(() -> {
+                    try {
+                        action.accept(track);
+                    } finally {
+                        slots.release();
+                    }
+                });
+                runCalls();
+            });
+        } finally {
+            executor.shutdown();
+            while (! executor.awaitTermination(10, TimeUnit.MILLISECONDS)) {
+                runCalls();
+            }
+            runCalls();
+        }
+    }
+
+    private void runCalls() {
+        FutureTask<?> call;
+        while ((call = calls.poll()) != null) {
+            call.run();
+        }
+    }
+
+    // Makes the change on the library thread, waiting for it, and returns the updated track
+    TrackLibrary.Track set(final TrackLibrary.Track track, final String field, final String value) {
+        if (Thread.currentThread() == thread) {
+            return library.set(track, field, value);
+        }
+        FutureTask<TrackLibrary.Track> call = new FutureTask<TrackLibrary.Track>(() -> library.set(track, field, value));
+        calls.add(call);
+        try {
+            return call.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,29 +1,23 @@
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
-import java.io.UnsupportedEncodingException;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
-import java.nio.file.FileVisitResult;
-import java.nio.file.FileVisitor;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.function.Function;
 
 import org.jaudiotagger.audio.AudioFile;
 import org.jaudiotagger.audio.AudioFileIO;
+import org.jaudiotagger.audio.AudioHeader;
 import org.jaudiotagger.tag.FieldKey;
 import org.jaudiotagger.tag.Tag;
 import org.jaudiotagger.tag.TagField;
@@ -31,6 +25,7 @@ import org.jaudiotagger.tag.TagTextField;
 import org.kohsuke.args4j.Argument;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
 
 
 public class MusicFileSync {
@@ -38,13 +33,158 @@ public class MusicFileSync {
         SOURCE,
         DESTINATION
     }
-    private static final String FFMPEG = "c:/Users/mishkin/ffmpeg/bin/ffmpeg.exe";
-    
+    enum TranscoderType {
+        FFMPEG,
+        FAKE
+    }
     @Argument
     private List<String> arguments = new ArrayList<String>();
-    private String dstRoot;
     
-    public static void main(String[] args) throws IOException {
+    // Number of threads parsing tags during the scan; 1 walks and parses on the calling thread
+    @Option(name="-scanThreads")
+    private int scanThreads = 1;
+    
+    // Number of ffmpeg processes to run at once
+    @Option(name="-transcodeThreads")
+    private int transcodeThreads = Runtime.getRuntime().availableProcessors();
+    
+    // FAKE copies the files instead of encoding them, for benchmarking the sync itself
+    @Option(name="-transcoder")
+    private TranscoderType transcoderType = TranscoderType.FFMPEG;
+    
+    // Defaults to the FFMPEG environment variable, or ffmpeg on the path
+    @Option(name="-ffmpeg")
+    private String ffmpeg = System.getenv("FFMPEG") != null ? System.getenv("FFMPEG") : "ffmpeg";
+    
+    // Audio codec and bitrate passed to ffmpeg, for every profile that doesn't give its own; if not
+    // given ffmpeg chooses from the file name
+    @Option(name="-codec")
+    private String codec;
+    
+    @Option(name="-bitrate")
+    private String bitrate;
+    
+    @Option(name="-id3v2Version")
+    private int id3v2Version = 3;
+    
+    // Time the fake transcoder takes per file
+    @Option(name="-fakeDelay")
+    private long fakeDelayMillis = 0;
+    
+    // The fields of SyncITunesAndFiles.FIELDS, whose values are recorded in the index
+    static final FieldKey[] SYNC_FIELDS = syncFields();
+    
+    // Print the plan instead of carrying it out
+    @Option(name="-dryRun")
+    private boolean dryRun;
+    
+    // File to save the plan in
+    @Option(name="-savePlan")
+    private String savePlan;
+    
+    // Carry out a previously saved plan instead of scanning
+    @Option(name="-executePlan")
+    private String executePlan;
+    
+    // Diff by sorting and merging the keys of both sides instead of looking them up in maps. The
+    // scans still hold their indexes in memory; the diff reads them back from the saved files.
+    @Option(name="-mergeJoin")
+    private boolean mergeJoin;
+    
+    // Number of entries sorted in memory at once when merge-joining
+    @Option(name="-sortChunk")
+    private int sortChunk = 100000;
+    
+    // Bytes left free after the frames when an ID3v2 tag has outgrown its file and the file is rewritten
+    @Option(name="-tagPadding")
+    private int tagPadding = 4096;
+    
+    // Number of destination directories whose tags are updated at once
+    @Option(name="-planThreads")
+    private int planThreads = 1;
+    
+    // Where the plan being carried out is journaled; a run finding it resumes the interrupted run
+    @Option(name="-journal")
+    private String journalFile = "sync.journal";
+    
+    // A destination with its own format, bitrate and filter, as name=root[,setting=value...] (see
+    // Profile). May be given more than once; all arguments are then source trees, scanned once for
+    // all the destinations.
+    @Option(name="-profile")
+    private List<String> profileSpecs = new ArrayList<String>();
+    
+    // Keep running after the sync, syncing changes to the source trees as they are made
+    @Option(name="-watch")
+    private boolean watch;
+    
+    // Milliseconds without a change before the changes seen are synced
+    @Option(name="-debounce")
+    private long debounceMillis = 2000;
+    
+    // When watching, scan everything this often, for changes that weren't reported
+    @Option(name="-rescanMinutes")
+    private long rescanMinutes = 60;
+    
+    // Write a report of the files with the same key, from the indexes of the last run, instead of syncing
+    @Option(name="-duplicates")
+    private String duplicatesFile;
+    
+    // With -duplicates, also save the plan that deletes all but the best file of each key
+    @Option(name="-resolvePlan")
+    private String resolvePlan;
+    
+    // Only read source files whose path under the source tree matches one of these globs
+    @Option(name="-include")
+    private List<String> includes = new ArrayList<String>();
+    
+    // Leave out source files whose path under the source tree matches one of these globs
+    @Option(name="-exclude")
+    private List<String> excludes = new ArrayList<String>();
+    
+    // Don't go into source directories with this name (may be a glob)
+    @Option(name="-skipDir")
+    private List<String> skippedDirs = new ArrayList<String>();
+    
+    // Leave out source files smaller or larger than this many bytes
+    @Option(name="-minSize")
+    private long minSize = 0;
+    
+    @Option(name="-maxSize")
+    private long maxSize = Long.MAX_VALUE;
+    
+    // Leave out source files last modified before this day, or on or after it, as yyyy-mm-dd
+    @Option(name="-modifiedAfter")
+    private String modifiedAfter;
+    
+    @Option(name="-modifiedBefore")
+    private String modifiedBefore;
+    
+    // File the counters and timings of the run are written to, as JSON
+    @Option(name="-metrics")
+    private String metricsFile = "metrics.json";
+    
+    private List<Profile> profiles;
+    // Decides which source files are read
+    private WalkFilter walkFilter = WalkFilter.ALL;
+    // What the walk filter left out of the last source scan, and the entries kept for it by path;
+    // these take no part in the plan, and their copies at the destination are left alone
+    private final List<Path> leftOutFiles = new ArrayList<Path>();
+    private final List<Path> prunedDirs = new ArrayList<Path>();
+    private final Map<String, TrackEntry> carried = new HashMap<String, TrackEntry>();
+    // The destination being planned
+    private Profile profile;
+    
+    public MusicFileSync() {
+    }
+    
+    // Sets up the roots without going through the command line, for driving the diff directly
+    MusicFileSync(List<String> arguments) {
+        this.arguments = arguments;
+        this.profiles = Collections.singletonList(Profile.single(arguments.get(0), null, null));
+        this.profile = profiles.get(0);
+    }
+    
+    public static void main(String[] args) throws IOException, InterruptedException {
         new MusicFileSync().doMain(args);
     }
     
@@ -65,7 +205,7 @@ public class MusicFileSync {
         }
     }
     
-    public void doMain(String[] args) throws IOException {
+    public void doMain(String[] args) throws IOException, InterruptedException {
         CmdLineParser parser = new CmdLineParser(this);
         
         try {
@@ -77,112 +217,379 @@ public class MusicFileSync {
             return;
         }
         
-        dstRoot = arguments.get(0);
+        try {
+            profiles = profiles();
+            walkFilter = new WalkFilter(includes, excludes, skippedDirs, minSize, maxSize, modifiedAfter, modifiedBefore);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        if (watch && profiles.size() > 1) {
+            System.err.println("-watch only works with a single destination");
+            return;
+        }
         
-        // Collect all the files in the destination directory tree
-        Map<String, Path> dstMap = new HashMap<String, Path>();
-        Path dstDatPath = FS.getPath("dst.dat");
+        if (duplicatesFile != null) {
+            reportDuplicates();
+            return;
+        }
         
-        if (Files.exists(dstDatPath)) {
-            readMapFromFile(dstMap, dstDatPath);
-        } else {
-            fillMap(Side.DESTINATION, dstMap, 0, dstDatPath);
-            writeMapToFile(dstMap, dstDatPath);
+        SyncMetrics metrics = SyncMetrics.INSTANCE;
+        metrics.register();
+        try {
+            Journal journal = new Journal(FS.getPath(journalFile));
+            SyncPlan plan;
+            if (executePlan == null && journal.exists()) {
+                plan = journal.resume();
+                System.out.format("Resuming interrupted run: %d of %d actions already done\n",
+                        journal.doneCount(), plan.actions().size());
+            } else if (executePlan != null) {
+                plan = SyncPlan.load(FS.getPath(executePlan));
+            } else {
+                plan = makePlan();
+            }
+            
+            if (savePlan != null) {
+                plan.save(FS.getPath(savePlan));
+            }
+            if (dryRun) {
+                plan.print(System.out);
+                return;
+            }
+            execute(journal, plan);
+            if (watch) {
+                profile = profiles.get(0);
+                List<Path> srcRoots = new ArrayList<Path>();
+                for (String srcRoot : sourceRoots()) {
+                    srcRoots.add(FS.getPath(srcRoot));
+                }
+                new SyncWatcher(this, journal, srcRoots, profile, walkFilter, debounceMillis, rescanMinutes * 60000L).run(plan);
+            }
+        } finally {
+            metrics.endPhase();
+            try {
+                metrics.writeJson(FS.getPath(metricsFile));
+            } catch (IOException e) {
+                System.out.format("Error writing metrics: %s\n", e);
+            }
+        }
+    }
+    
+    private void reportDuplicates() throws IOException {
+        // Only the first destination is looked at
+        DuplicateReport report = new DuplicateReport(TrackIndex.load(FS.getPath("src.idx")),
+                TrackIndex.load(FS.getPath(profiles.get(0).indexName())));
+        report.write(FS.getPath(duplicatesFile));
+        System.out.format("Keys with duplicates: %d in the source, %d in the destination\n",
+                report.sourceCount(), report.destinationCount());
+        if (resolvePlan != null) {
+            report.resolution().save(FS.getPath(resolvePlan));
+        }
+    }
+    
+    // Carries out the plan, journaled so that an interrupted run can pick it up again
+    void execute(Journal journal, SyncPlan plan) throws IOException, InterruptedException {
+        journal.start(plan);
+        new PlanExecutor(createTranscoder(), transcodeThreads, planThreads, journal, new TagWriter(tagPadding)).execute(plan);
+        journal.finish();
+        SyncMetrics metrics = SyncMetrics.INSTANCE;
+        System.out.format("Wrote %d tags in place and rewrote %d files\n", metrics.inPlaceWrites.get(), metrics.tagRewrites.get());
+    }
+    
+    private List<Profile> profiles() {
+        if (profileSpecs.isEmpty()) {
+            return Collections.singletonList(Profile.single(arguments.get(0), codec, bitrate));
+        }
+        List<Profile> list = new ArrayList<Profile>();
+        for (String spec : profileSpecs) {
+            list.add(Profile.parse(spec, codec, bitrate));
         }
+        return list;
+    }
+    
+    // Without profiles the first argument is the destination
+    private List<String> sourceRoots() {
+        return arguments.subList(profileSpecs.isEmpty() ? 1 : 0, arguments.size());
+    }
+    
+    // Scans both sides and works out what needs doing, without changing anything. The source is
+    // scanned once, and the plans for all the destinations go into the one plan.
+    SyncPlan makePlan() throws IOException {
+        SyncPlan plan = new SyncPlan();
         
         // Collect all the files at the source
-        Map<String, Path> srcMap = new HashMap<String, Path>();
-        Path srcDatPath = FS.getPath("src.dat");
-        
-        if (Files.exists(srcDatPath)) {
-            readMapFromFile(srcMap, srcDatPath);
-        } else {
-            for (int i = 1; i < arguments.size(); i++) {
-                fillMap(Side.SOURCE, srcMap, i, srcDatPath);
+        SyncMetrics.INSTANCE.startPhase("scanSource");
+        Map<String, TrackEntry> srcMap = mergeJoin ? null : new HashMap<String, TrackEntry>();
+        Path srcIndexPath = FS.getPath("src.idx");
+        TrackIndex prevSrcIndex = TrackIndex.load(srcIndexPath);
+        TrackIndex srcIndex = new TrackIndex();
+        leftOutFiles.clear();
+        prunedDirs.clear();
+        carried.clear();
+        for (String srcRoot : sourceRoots()) {
+            TagScanner scanner = fillMap(Side.SOURCE, srcMap, srcRoot, prevSrcIndex, srcIndex, plan);
+            leftOutFiles.addAll(scanner.leftOutFiles());
+            prunedDirs.addAll(scanner.prunedDirs());
+            for (TrackEntry entry : scanner.carried()) {
+                carried.put(entry.path, entry);
             }
-            writeMapToFile(srcMap, srcDatPath);
         }
-        int srcMapSize = srcMap.size();
+        srcIndex.save(srcIndexPath);
+        if (mergeJoin) {
+            // The join reads the entries back from the file one at a time, so the scan's copy can go
+            srcIndex = TrackIndex.open(srcIndexPath);
+        }
         
-        // Look through all the files in the source directory trees and see if they have equivalent at the destination
-        int i = 0;
-        for (Entry<String, Path> srcEntry : srcMap.entrySet()) {
-            if (++i % 100 == 0) {
-                System.out.format("====> %d of %d\n", i, srcMapSize);
+        for (Profile destination : profiles) {
+            profile = destination;
+            
+            // Collect all the files in the destination directory tree. When merge-joining the
+            // keys are not collected in maps; duplicates are found by the join instead.
+            SyncMetrics.INSTANCE.startPhase("scanDestination");
+            Map<String, TrackEntry> dstMap = mergeJoin ? null : new HashMap<String, TrackEntry>();
+            Path dstIndexPath = FS.getPath(profile.indexName());
+            TrackIndex dstIndex = new TrackIndex();
+            fillMap(Side.DESTINATION, dstMap, profile.root, TrackIndex.load(dstIndexPath), dstIndex, plan);
+            dstIndex.save(dstIndexPath);
+            if (mergeJoin) {
+                dstIndex = TrackIndex.open(dstIndexPath);
             }
             
+            SyncMetrics.INSTANCE.startPhase("diff");
+            if (mergeJoin) {
+                mergeJoin(plan, srcIndex, dstIndex);
+            } else {
+                diff(plan, accepted(srcMap), dstMap);
+            }
+        }
+        SyncMetrics.INSTANCE.endPhase();
+        return plan;
+    }
+    
+    // The source entries that go to the destination being planned
+    private Map<String, TrackEntry> accepted(Map<String, TrackEntry> srcMap) {
+        Map<String, TrackEntry> map = new HashMap<String, TrackEntry>();
+        for (Entry<String, TrackEntry> srcEntry : srcMap.entrySet()) {
+            if (profile.accepts(srcEntry.getValue())) {
+                map.put(srcEntry.getKey(), srcEntry.getValue());
+            }
+        }
+        return map;
+    }
+    
+    // Plans the changes for the source and destination maps; dstMap is left holding the unmatched destination entries
+    void diff(SyncPlan plan, Map<String, TrackEntry> srcMap, Map<String, TrackEntry> dstMap) {
+        // Look through all the files in the source directory trees and see if they have equivalent at the destination
+        List<TrackEntry> srcUnmatched = new ArrayList<TrackEntry>();
+        for (Entry<String, TrackEntry> srcEntry : srcMap.entrySet()) {
             String srcKey = srcEntry.getKey();
-            Path dstPath = dstMap.get(srcKey);
-            Path srcPath = srcEntry.getValue();
-            if (dstPath == null) {
-                copyFile(srcPath);
+            TrackEntry dstTrack = dstMap.get(srcKey);
+            TrackEntry srcTrack = srcEntry.getValue();
+            if (dstTrack == null) {
+                srcUnmatched.add(srcTrack);
             } else {
-                updateFile(dstPath, srcPath);
+                updateFile(plan, dstTrack, srcTrack, dstTrack.path);
                 dstMap.remove(srcKey);
             }
         }
         
-        System.out.format("Unaccounted for files in destination: %d\n", dstMap.size());
-        for (Entry<String, Path> dstEntry : dstMap.entrySet()) {
-            Path value = dstEntry.getValue();
-            deleteFile(value);
-        }
+        planUnmatched(plan, srcUnmatched, dstMap.values());
     }
-
-    private void updateFile(Path dstPath, Path srcPath) {
-        try {
-            AudioFile dstFile = AudioFileIO.read(dstPath.toFile());
-            Tag dstTag = dstFile.getTag();
+    
+    // Source files without a destination are transcoded, unless they can be matched by fingerprint
+    // with a destination file, which is then retagged and moved if need be. Destination files left
+    // over are deleted, unless a copy or rename is to write over them.
+    void planUnmatched(SyncPlan plan, List<TrackEntry> srcUnmatched, Collection<TrackEntry> dstUnmatched) {
+        dstUnmatched = withoutLeftOut(dstUnmatched);
+        FingerprintMatcher matcher = new FingerprintMatcher(FS.getPath(profile.root), dstUnmatched);
+        int retagged = 0;
+        for (TrackEntry srcTrack : srcUnmatched) {
+            TrackEntry dstTrack = matcher.match(relativize(srcTrack.toPath()), srcTrack);
+            if (dstTrack == null) {
+                copyFile(plan, srcTrack);
+                continue;
+            }
+            String dstPath = dstPathFor(srcTrack);
+            if (FS.getPath(dstPath).equals(dstTrack.toPath())) {
+                dstPath = dstTrack.path;
+            } else {
+                plan.addRename(srcTrack.key, dstTrack.path, dstPath);
+            }
+            updateFile(plan, dstTrack, srcTrack, dstPath);
+            retagged++;
+        }
+        System.out.format("Matched by fingerprint instead of transcoding: %d\n", retagged);
         
-            AudioFile srcFile = AudioFileIO.read(srcPath.toFile());
-            Tag srcTag = srcFile.getTag();
-            
-            boolean modified = false;
-            for (Object[] pair : SyncITunesAndFiles.FIELDS) {
-                FieldKey key = (FieldKey) pair[0];
-                String srcField = srcTag.getFirst(key);
-                String dstField = dstTag.getFirst(key);
-                if (srcField != null && ! srcField.equals(dstField)) {
-                    dstTag.setField(key, srcField);
-                    modified = true;
+        // Deleting a file a transcode is writing would race with it
+        Set<Path> written = new HashSet<Path>();
+        for (SyncPlan.Action action : plan.actions()) {
+            if (action.type == SyncPlan.Type.COPY || action.type == SyncPlan.Type.RENAME) {
+                written.add(action.dst());
+            }
+        }
+        int unaccounted = 0;
+        for (TrackEntry dstTrack : dstUnmatched) {
+            if (! matcher.isMatched(dstTrack) && ! written.contains(dstTrack.toPath())) {
+                plan.addDelete(dstTrack.key, dstTrack.path);
+                unaccounted++;
+            }
+        }
+        System.out.format("Unaccounted for files in destination: %d\n", unaccounted);
+    }
+    
+    // Leaves out the destination files that are, or may be, copies of source files the walk filter
+    // left out: those with the key of an entry kept for them, at the path a left out file would be
+    // copied to, or under a directory left out
+    private Collection<TrackEntry> withoutLeftOut(Collection<TrackEntry> dstTracks) {
+        if (leftOutFiles.isEmpty() && prunedDirs.isEmpty()) {
+            return dstTracks;
+        }
+        Set<String> keys = new HashSet<String>();
+        for (TrackEntry entry : carried.values()) {
+            keys.add(entry.key);
+        }
+        Set<Path> files = new HashSet<Path>();
+        for (Path srcPath : leftOutFiles) {
+            files.add(FS.getPath(profile.dstPathFor(relativize(srcPath).toString())));
+        }
+        List<Path> dirs = new ArrayList<Path>();
+        for (Path srcDir : prunedDirs) {
+            dirs.add(FS.getPath(profile.root).resolve(relativize(srcDir)));
+        }
+        List<TrackEntry> kept = new ArrayList<TrackEntry>();
+        int leftAlone = 0;
+        for (TrackEntry dstTrack : dstTracks) {
+            Path path = dstTrack.toPath();
+            boolean leftOut = dstTrack.key != null && keys.contains(dstTrack.key) || files.contains(path);
+            for (int i = 0; ! leftOut && i < dirs.size(); i++) {
+                leftOut = path.startsWith(dirs.get(i));
+            }
+            if (leftOut) {
+                leftAlone++;
+            } else {
+                kept.add(dstTrack);
+            }
+        }
+        System.out.format("Left alone in destination, outside the walk filter: %d\n", leftAlone);
+        return kept;
+    }
+    
+    /**
+     * Works out the same plan as the map lookups in makePlan, but by sorting the keys of both
+     * sides, spilling to disk as needed, and walking the two sorted streams side by side. The
+     * indexes are read from their files, so apart from the sort chunks only the unmatched entries
+     * are held in memory.
+     * Entries are ordered by key and then by index position, which is walk order, so the last
+     * entry of a run of equal keys is the one the map would have kept.
+     */
+    void mergeJoin(SyncPlan plan, TrackIndex srcIndex, TrackIndex dstIndex) throws IOException {
+        try (ExternalSorter srcSorter = sort(srcIndex, profile); ExternalSorter dstSorter = sort(dstIndex, null)) {
+            Iterator<ExternalSorter.Record> srcRecords = srcSorter.sorted();
+            Iterator<ExternalSorter.Record> dstRecords = dstSorter.sorted();
+            KeyRun srcRun = new KeyRun(Side.SOURCE, srcRecords);
+            KeyRun dstRun = new KeyRun(Side.DESTINATION, dstRecords);
+            TrackEntry srcTrack = srcRun.next(plan);
+            TrackEntry dstTrack = dstRun.next(plan);
+            // Only the unmatched entries are kept, for matching by fingerprint
+            List<TrackEntry> srcUnmatched = new ArrayList<TrackEntry>();
+            List<TrackEntry> dstUnmatched = new ArrayList<TrackEntry>();
+            while (srcTrack != null || dstTrack != null) {
+                int c = srcTrack == null ? 1 : dstTrack == null ? -1 : srcTrack.key.compareTo(dstTrack.key);
+                if (c < 0) {
+                    srcUnmatched.add(srcTrack);
+                    srcTrack = srcRun.next(plan);
+                } else if (c > 0) {
+                    dstUnmatched.add(dstTrack);
+                    dstTrack = dstRun.next(plan);
+                } else {
+                    updateFile(plan, dstTrack, srcTrack, dstTrack.path);
+                    srcTrack = srcRun.next(plan);
+                    dstTrack = dstRun.next(plan);
                 }
             }
-            if (modified) {
-                System.out.format("Committing update to: %s\n", dstPath);
-                dstFile.commit();
+            planUnmatched(plan, srcUnmatched, dstUnmatched);
+        }
+    }
+    
+    // Only the entries the profile accepts, if one is given, and not those kept for files the walk filter left out
+    private ExternalSorter sort(TrackIndex index, Profile filter) throws IOException {
+        ExternalSorter sorter = new ExternalSorter(sortChunk);
+        for (TrackEntry entry : index.entries()) {
+            if (entry.key != null && (filter == null || filter.accepts(entry)) && ! carried.containsKey(entry.path)) {
+                sorter.add(entry);
             }
-            
-        } catch (Exception e) {
-            System.out.format("Error updating file: %s\n", e);
-            e.printStackTrace();
         }
+        return sorter;
+    }
+    
+    // Reads a sorted stream one key at a time, reporting all but the last entry with each key as duplicates
+    private static class KeyRun {
+        private final Side side;
+        private final Iterator<ExternalSorter.Record> records;
+        private ExternalSorter.Record pending;
         
+        KeyRun(Side side, Iterator<ExternalSorter.Record> records) {
+            this.side = side;
+            this.records = records;
+            this.pending = records.hasNext() ? records.next() : null;
+        }
         
-        
+        TrackEntry next(SyncPlan plan) {
+            if (pending == null) {
+                return null;
+            }
+            List<TrackEntry> run = new ArrayList<TrackEntry>();
+            String key = pending.entry.key;
+            while (pending != null && pending.entry.key.equals(key)) {
+                run.add(pending.entry);
+                pending = records.hasNext() ? records.next() : null;
+            }
+            TrackEntry last = run.get(run.size() - 1);
+            for (int i = 0; i < run.size() - 1; i++) {
+                reportDuplicate(side, key, last.path, run.get(i).path, plan);
+            }
+            return last;
+        }
     }
 
-    private void copyFile(Path srcPath) {
-//      System.out.format("No destination entry for source entry: %s\n", srcKey);
-        try {
-            String dstPath = String.format("%s/%s", dstRoot, relativize(srcPath)).replace(".m4a", ".mp3");
-            new File(dstPath).getParentFile().mkdirs();
-            System.out.format("ffmpeg: %s -> %s\n", srcPath, dstPath);
-            String[] command = {FFMPEG, "-y", "-loglevel", "quiet", "-i", srcPath.toString(), "-id3v2_version", "3", dstPath.toString()};
-            Process process = Runtime.getRuntime().exec(command);
-            int status = process.waitFor();
-            if (status != 0) {
-                System.out.format("ffmpeg returned status %s\n", status);
+    // Compares the field values recorded in the index, so nothing is planned unless a field has changed
+    void updateFile(SyncPlan plan, TrackEntry dstTrack, TrackEntry srcTrack, String dstPath) {
+        List<SyncPlan.FieldChange> changes = new ArrayList<SyncPlan.FieldChange>();
+        for (int i = 0; i < SYNC_FIELDS.length; i++) {
+            String srcField = srcTrack.fields[i];
+            String dstField = dstTrack.fields[i];
+            if (srcField != null && ! srcField.equals(dstField)) {
+                changes.add(new SyncPlan.FieldChange(SYNC_FIELDS[i], dstField, srcField));
             }
-        } catch (Exception e) {
-            System.out.format("Error copying file: %s\n", e);
-            e.printStackTrace();
         }
+        if (! changes.isEmpty()) {
+            plan.addUpdate(srcTrack.key, srcTrack.path, dstPath, changes);
+        }
+    }
+
+    private Transcoder createTranscoder() {
+        switch (transcoderType) {
+        case FAKE:
+            return new FakeTranscoder(fakeDelayMillis);
+        default:
+            return new FfmpegTranscoder(ffmpeg, profiles, id3v2Version);
+        }
+    }
+
+    void copyFile(SyncPlan plan, TrackEntry srcTrack) {
+//      System.out.format("No destination entry for source entry: %s\n", srcKey);
+        plan.addCopy(srcTrack.key, srcTrack.path, dstPathFor(srcTrack));
+    }
+    
+    // Where the source file goes in the destination tree
+    private String dstPathFor(TrackEntry srcTrack) {
+        return profile.dstPathFor(relativize(srcTrack.toPath()).toString());
     }
 
     // Turns the source path into a path relative to the source directory tree it came from.
     private Path relativize(Path srcPath) {
-        for (int i = 1; i < arguments.size(); i++) {
-            Path relPath = FS.getPath(arguments.get(i)).relativize(srcPath);
+        for (String srcRoot : sourceRoots()) {
+            Path relPath = FS.getPath(srcRoot).relativize(srcPath);
             if (relPath.iterator().hasNext()) {
                 return relPath;
             }
@@ -204,99 +611,98 @@ public class MusicFileSync {
 
     private static final FileSystem FS = FileSystems.getDefault();
     
-    private void fillMap(Side side, Map<String, Path> map, int i, Path datPath) throws IOException {
-        String dir = arguments.get(i);
+    // Walks one directory tree, re-reading the tags of only those files that have changed since
+    // they were recorded in the previous index. Only the source is filtered; the destination has
+    // to be seen whole for its strays to be found.
+    private TagScanner fillMap(Side side, Map<String, TrackEntry> map, String dir, TrackIndex prevIndex, TrackIndex index, SyncPlan plan) throws IOException {
         Path dirPath = FS.getPath(dir);
         System.out.format("Walking %s\n", dirPath);
-        Files.walkFileTree(dirPath, new MyFileVisitor(side, dirPath, map));
+        WalkFilter filter = side == Side.SOURCE ? walkFilter : WalkFilter.ALL;
+        TagScanner scanner = new TagScanner(side, scanThreads, prevIndex, plan, filter);
+        scanner.scan(dirPath, map, index);
+        return scanner;
     }
 
-    private void readMapFromFile(Map<String, Path> map, Path datPath)
-            throws UnsupportedEncodingException, FileNotFoundException, IOException 
-    {
-        System.out.format("Reading from file %s\n", datPath);
-        BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(datPath.toFile()), "UTF-8"));  
-        while (true) {
-            String line = r.readLine();
-            if (line == null) {
-                break;
-            }
-            String[] split = line.split("<>");
-            map.put(split[0], FS.getPath(split[1]));
+    private static FieldKey[] syncFields() {
+        FieldKey[] keys = new FieldKey[SyncITunesAndFiles.FIELDS.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = SyncITunesAndFiles.FIELDS[i].fieldKey;
         }
-        r.close();
+        return keys;
     }
 
-    private void writeMapToFile(Map<String, Path> map, Path datPath)
-            throws UnsupportedEncodingException, FileNotFoundException 
-    {
-        PrintStream w = new PrintStream(new FileOutputStream(datPath.toFile()), true, "UTF-8"); 
-        for (Entry<String, Path> entry : map.entrySet()) {
-            w.format("%s<>%s\n", entry.getKey(), entry.getValue());
+    // Called for every file walked, so just compares the end of the name
+    static boolean isAudioFile(Path path) {
+        Path name = path.getFileName();
+        if (name == null) {
+            return false;
         }
-        w.close();
+        String s = name.toString();
+        return s.length() > 4 && (s.regionMatches(true, s.length() - 4, ".mp3", 0, 4)
+                || s.regionMatches(true, s.length() - 4, ".m4a", 0, 4));
     }
-
-    private static class MyFileVisitor implements FileVisitor<Path> {
-        private Map<String, Path> map;
-        private Side side;
-
-        MyFileVisitor(Side side, Path baseDir, Map<String, Path> map) {
-            this.side = side;
-            this.map = map;
-        }
-
-        public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-            return FileVisitResult.CONTINUE;
+    
+    // Reads the tags of the file and builds its index entry, or returns null if the file can't be read.
+    // The entry has no key if the file is not to be synced. Safe to call from several threads at once.
+    // Most files are read from their headers alone (see TagReader), the rest by jaudiotagger.
+    static TrackEntry readEntry(Side side, Path path, BasicFileAttributes attrs) {
+        try {
+            TagReader.Tags tags = TagReader.read(path);
+            if (tags != null) {
+                SyncMetrics.INSTANCE.headerReads.incrementAndGet();
+                return entry(side, path, attrs, tags::get, tags.duration, tags.bitrate);
+            }
+            AudioFile file = AudioFileIO.read(path.toFile());
+            Tag tag = file.getTag();
+//            showFileTagFields(tag);
+            AudioHeader header = file.getAudioHeader();
+            return entry(side, path, attrs, tag::getFirst, header.getTrackLength(), (int) header.getBitRateAsNumber());
+        } catch (Exception e) {
+            System.out.format("Error with file: %s (%s)\n", path, e.getMessage());
+            return null;
         }
-
-        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-            return FileVisitResult.CONTINUE;
+    }
+    
+    private static TrackEntry entry(Side side, Path path, BasicFileAttributes attrs, Function<FieldKey, String> tag,
+            int duration, int bitrate) {
+        if (side == Side.SOURCE) {
+            String genre = tag.apply(FieldKey.GENRE);
+            if (genre.equalsIgnoreCase("Podcast")) {
+                return new TrackEntry(path, attrs, null, null, 0, 0);
+            }
         }
-
-        private static final Pattern SUFFIX_PATTERN = Pattern.compile("(.+(\\.(?i)(mp3|m4a))$)");
         
-        public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
-            String pathString = path.toString();
-            
-            if (! SUFFIX_PATTERN.matcher(pathString).matches()) {
-                return FileVisitResult.CONTINUE;
-            }
-            
-            AudioFile file;
+        String key = String.format("%s|%s|%s|%s", tag.apply(FieldKey.ALBUM), tag.apply(FieldKey.DISC_NO), tag.apply(FieldKey.TRACK), tag.apply(FieldKey.TITLE));
+        String[] fields = new String[SYNC_FIELDS.length];
+        for (int i = 0; i < SYNC_FIELDS.length; i++) {
             try {
-                file = AudioFileIO.read(path.toFile());
-                Tag tag = file.getTag();
-//                showFileTagFields(tag);
-                
-                if (side == Side.SOURCE) {
-                    String genre = tag.getFirst(FieldKey.GENRE);
-                    if (genre.equalsIgnoreCase("Podcast")) {
-                        return FileVisitResult.CONTINUE;
-                    }
-                }
-                
-                String key = String.format("%s|%s|%s|%s", tag.getFirst(FieldKey.ALBUM), tag.getFirst(FieldKey.DISC_NO), tag.getFirst(FieldKey.TRACK), tag.getFirst(FieldKey.TITLE));
-                Path prevPath = map.put(key, path);
-                if (prevPath != null) {
-                    System.out.format("Duplicate for key <%s>:\n  %s\n  %s\n", key, path, prevPath);
-                    if (side == Side.DESTINATION) {
-                        deleteFile(prevPath);
-                    }
-                }
-            } catch (Exception e) {
-                System.out.format("Error with file: %s (%s)\n", path, e.getMessage());
+                fields[i] = tag.apply(SYNC_FIELDS[i]);
+            } catch (RuntimeException e) {
+                // Field not supported by this format
             }
-            return FileVisitResult.CONTINUE;
         }
-
-        public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-            return FileVisitResult.CONTINUE;
+        return new TrackEntry(path, attrs, key, fields, duration, bitrate);
+    }
+    
+    static void putEntry(Side side, Map<String, TrackEntry> map, TrackEntry entry, SyncPlan plan) {
+        TrackEntry prevEntry = map.put(entry.key, entry);
+        if (prevEntry != null) {
+            reportDuplicate(side, entry.key, entry.path, prevEntry.path, plan);
+        }
+    }
+    
+    static void reportDuplicate(Side side, String key, String path, String prevPath, SyncPlan plan) {
+        System.out.format("Duplicate for key <%s>:\n  %s\n  %s\n", key, path, prevPath);
+        plan.addDuplicate(key, path, prevPath);
+        if (side == Side.DESTINATION) {
+            plan.addDelete(key, prevPath);
         }
     }
 
-    private static void deleteFile(Path path) {
+    // Deleting is turned off, so this returns false to say the file is still there
+    static boolean deleteFile(Path path) {
 //        System.out.format("  Deleting: %s\n", path);
-//        path.toFile().delete();
+//        return path.toFile().delete();
+        return false;
     }
 }
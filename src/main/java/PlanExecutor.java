@@ -0,0 +1,196 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Carries out a SyncPlan. Renames are done first, so that updates find the files where the plan
+ * expects them; the update of a file that couldn't be moved is left for the next run, as the path
+ * it was to be moved to may belong to another file. Copies are then handed to a TranscodeQueue so
+ * the encoders are busy while the tag updates are done; copies of one source file to several
+ * destinations are transcoded together. Updates are grouped by destination directory, and each
+ * directory is done in one go, so files that sit together on disk are written together. With more
+ * than one thread several directories are updated at once.
+ *
+ * Each action is recorded in the journal as it completes, and actions the journal already has
+ * as done, from an interrupted run, are skipped.
+ */
+class PlanExecutor {
+    private final Transcoder transcoder;
+    private final int transcodeThreads;
+    private final int threads;
+    private final Journal journal;
+    private final TagWriter tagWriter;
+
+    PlanExecutor(Transcoder transcoder, int transcodeThreads, int threads, Journal journal, TagWriter tagWriter) {
+        this.transcoder = transcoder;
+        this.transcodeThreads = transcodeThreads;
+        this.threads = threads;
+        this.journal = journal;
+        this.tagWriter = tagWriter;
+    }
+
+    void execute(SyncPlan plan) throws InterruptedException {
+        SyncMetrics metrics = SyncMetrics.INSTANCE;
+        metrics.startPhase("rename");
+        Set<Path> notMoved = new HashSet<Path>();
+        for (SyncPlan.Action action : pending(plan.actions(SyncPlan.Type.RENAME))) {
+            if (renameFile(action)) {
+                journal.done(action);
+            } else {
+                notMoved.add(action.dst());
+            }
+        }
+
+        // Transcodes run in the background from here on, so their time is not a phase of its own
+        metrics.startPhase("update");
+        TranscodeQueue transcodeQueue = new TranscodeQueue(transcoder, transcodeThreads);
+        for (List<SyncPlan.Action> srcActions : bySource(pending(plan.actions(SyncPlan.Type.COPY))).values()) {
+            List<Path> dstPaths = new ArrayList<Path>();
+            for (SyncPlan.Action action : srcActions) {
+                dstPaths.add(action.dst());
+            }
+            transcodeQueue.submit(srcActions.get(0).src(), dstPaths, () -> {
+                for (SyncPlan.Action action : srcActions) {
+                    journal.done(action);
+                }
+            });
+        }
+
+        List<SyncPlan.Action> pendingUpdates = new ArrayList<SyncPlan.Action>();
+        for (SyncPlan.Action action : pending(plan.actions(SyncPlan.Type.UPDATE))) {
+            if (! notMoved.contains(action.dst())) {
+                pendingUpdates.add(action);
+            }
+        }
+        if (! notMoved.isEmpty()) {
+            System.out.format("Files not renamed, their updates left for the next run: %d\n", notMoved.size());
+        }
+        Map<Path, List<SyncPlan.Action>> updates = byDirectory(pendingUpdates);
+        final int updateCount = pendingUpdates.size();
+        final AtomicInteger done = new AtomicInteger();
+        ExecutorService executor = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        for (final List<SyncPlan.Action> dirActions : updates.values()) {
+            Runnable task = () -> {
+                for (SyncPlan.Action action : dirActions) {
+                    if (updateFile(action)) {
+                        journal.done(action);
+                    }
+                    if (done.incrementAndGet() % 100 == 0) {
+                        System.out.format("====> %d of %d\n", done.get(), updateCount);
+                    }
+                }
+            };
+            if (executor == null) {
+                task.run();
+            } else {
+                executor.execute(task);
+            }
+        }
+        if (executor != null) {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        metrics.startPhase("delete");
+        int notDeleted = 0;
+        for (SyncPlan.Action action : pending(plan.actions(SyncPlan.Type.DELETE))) {
+            // Only a delete that happened is recorded as done
+            if (MusicFileSync.deleteFile(action.dst())) {
+                journal.done(action);
+            } else {
+                notDeleted++;
+            }
+        }
+        if (notDeleted > 0) {
+            System.out.format("Files left in place, not deleted: %d\n", notDeleted);
+        }
+
+        metrics.startPhase("transcodeWait");
+        transcodeQueue.finish();
+        metrics.endPhase();
+    }
+
+    private List<SyncPlan.Action> pending(List<SyncPlan.Action> actions) {
+        List<SyncPlan.Action> list = new ArrayList<SyncPlan.Action>();
+        for (SyncPlan.Action action : actions) {
+            if (! journal.isDone(action)) {
+                list.add(action);
+            }
+        }
+        return list;
+    }
+
+    // Copies of the same source file to several destinations, taken in order of destination directory
+    private static Map<String, List<SyncPlan.Action>> bySource(List<SyncPlan.Action> actions) {
+        Map<String, List<SyncPlan.Action>> map = new LinkedHashMap<String, List<SyncPlan.Action>>();
+        for (List<SyncPlan.Action> dirActions : byDirectory(actions).values()) {
+            for (SyncPlan.Action action : dirActions) {
+                map.computeIfAbsent(action.srcPath, srcPath -> new ArrayList<SyncPlan.Action>()).add(action);
+            }
+        }
+        return map;
+    }
+
+    private static Map<Path, List<SyncPlan.Action>> byDirectory(List<SyncPlan.Action> actions) {
+        Map<Path, List<SyncPlan.Action>> map = new TreeMap<Path, List<SyncPlan.Action>>();
+        for (SyncPlan.Action action : actions) {
+            Path dir = action.dst().getParent();
+            List<SyncPlan.Action> list = map.get(dir);
+            if (list == null) {
+                list = new ArrayList<SyncPlan.Action>();
+                map.put(dir, list);
+            }
+            list.add(action);
+        }
+        return map;
+    }
+
+    // Returns whether the file is now at its new path
+    private static boolean renameFile(SyncPlan.Action action) {
+        try {
+            if (! Files.exists(action.src()) && Files.exists(action.dst())) {
+                // Moved by an interrupted run before it could record the rename
+                return true;
+            }
+            System.out.format("Renaming: %s -> %s\n", action.srcPath, action.dstPath);
+            Files.createDirectories(action.dst().getParent());
+            Files.move(action.src(), action.dst());
+            return true;
+        } catch (IOException e) {
+            System.out.format("Error renaming file: %s\n", e);
+            return false;
+        }
+    }
+
+    // Returns whether the tags were written
+    private boolean updateFile(SyncPlan.Action action) {
+        SyncMetrics metrics = SyncMetrics.INSTANCE;
+        Path dstPath = action.dst();
+        try {
+            System.out.format("Committing update to: %s\n", dstPath);
+            long start = System.nanoTime();
+            long written = tagWriter.write(dstPath, action.changes);
+            metrics.commit.since(start);
+            metrics.commits.incrementAndGet();
+            metrics.bytesWritten.addAndGet(written);
+            return true;
+
+        } catch (Exception e) {
+            metrics.commitErrors.incrementAndGet();
+            System.out.format("Error updating file: %s\n", e);
+            e.printStackTrace();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.jaudiotagger.tag.FieldKey;
+
+/**
+ * A destination tree and how it is filled: the format and bitrate the source files are
+ * transcoded to, and which tracks go there at all. Given on the command line as
+ *
+ *   name=root[,codec=C][,bitrate=B][,ext=E][,genres=A|B][,excludeGenres=A|B]
+ *
+ * codec and bitrate are passed to ffmpeg and default to -codec and -bitrate; ext is the
+ * extension of the destination files, mp3 (the default) or m4a. genres only lets tracks of
+ * those genres through, and excludeGenres keeps tracks of those genres out. The destination is
+ * indexed in name.idx, so no profile can be called src.
+ */
+class Profile {
+    private static final Pattern NAME_PATTERN = Pattern.compile("[A-Za-z0-9_-]+");
+    private static final Pattern AUDIO_SUFFIX_PATTERN = Pattern.compile("\\.(?i)(mp3|m4a)$");
+    private static final int GENRE = Arrays.asList(MusicFileSync.SYNC_FIELDS).indexOf(FieldKey.GENRE);
+
+    final String name;
+    final String root;
+    // null to let ffmpeg choose
+    final String codec;
+    final String bitrate;
+    final String extension;
+    // null to let every genre through
+    private final Set<String> genres;
+    private final Set<String> excludedGenres;
+
+    Profile(String name, String root, String codec, String bitrate, String extension, Set<String> genres, Set<String> excludedGenres) {
+        this.name = name;
+        this.root = root;
+        this.codec = codec;
+        this.bitrate = bitrate;
+        this.extension = extension;
+        this.genres = genres;
+        this.excludedGenres = excludedGenres;
+    }
+
+    // The single destination given as the first argument, indexed in dst.idx as it always was
+    static Profile single(String root, String codec, String bitrate) {
+        return new Profile("dst", root, codec, bitrate, "mp3", null, new HashSet<String>());
+    }
+
+    static Profile parse(String spec, String codec, String bitrate) {
+        String[] split = spec.split(",");
+        int eq = split[0].indexOf('=');
+        if (eq < 0 || ! NAME_PATTERN.matcher(split[0].substring(0, eq)).matches()) {
+            throw new IllegalArgumentException("Profile must start with name=root: " + spec);
+        }
+        String name = split[0].substring(0, eq);
+        // Its index would be the source's
+        if (name.equalsIgnoreCase("src")) {
+            throw new IllegalArgumentException("A profile can't be called src");
+        }
+        String root = split[0].substring(eq + 1);
+        String extension = "mp3";
+        Set<String> genres = null;
+        Set<String> excludedGenres = new HashSet<String>();
+        for (int i = 1; i < split.length; i++) {
+            eq = split[i].indexOf('=');
+            String value = eq < 0 ? "" : split[i].substring(eq + 1);
+            switch (eq < 0 ? split[i] : split[i].substring(0, eq)) {
+            case "codec":
+                codec = value;
+                break;
+            case "bitrate":
+                bitrate = value;
+                break;
+            case "ext":
+                extension = value;
+                break;
+            case "genres":
+                genres = new HashSet<String>(Arrays.asList(value.split("\\|")));
+                break;
+            case "excludeGenres":
+                excludedGenres = new HashSet<String>(Arrays.asList(value.split("\\|")));
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Unknown setting %s in profile %s", split[i], name));
+            }
+        }
+        // Destination files are only recognized by these
+        if (! extension.equals("mp3") && ! extension.equals("m4a")) {
+            throw new IllegalArgumentException(String.format("Profile %s: ext must be mp3 or m4a", name));
+        }
+        return new Profile(name, root, codec, bitrate, extension, genres, excludedGenres);
+    }
+
+    String indexName() {
+        return name + ".idx";
+    }
+
+    // Whether the source track belongs in this destination
+    boolean accepts(TrackEntry srcTrack) {
+        String genre = srcTrack.fields == null ? null : srcTrack.fields[GENRE];
+        return (genres == null || genres.contains(genre)) && ! excludedGenres.contains(genre);
+    }
+
+    // The path, relative to the source tree, with the extension of this profile
+    String dstPathFor(String relPath) {
+        return String.format("%s/%s", root, AUDIO_SUFFIX_PATTERN.matcher(relPath).replaceFirst("." + extension));
+    }
+}
@@ -0,0 +1,191 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiPredicate;
+
+/**
+ * How SyncITunesAndFiles settles a difference between a library field and the file's tag, read
+ * from a rules file. Each line holds one rule:
+ *
+ *   fields case condition action [label]
+ *
+ * fields: field names from SyncITunesAndFiles.FIELDS, separated by commas
+ * case: missing (the tag is empty and the library has a value) or mismatch (none of the tag's
+ *       values is the library's)
+ * condition: * for always, genre=A|B or genre!=A|B on the genre in the file's tag, or value=V or
+ *       value!=V on the library's value
+ * action: copyToFile, clear (the library's value), moveToComment (the library's value, clearing
+ *       it, prefixed with the label), ignore or report
+ *
+ * The first rule that matches wins. Without one a missing value is copied to the file and a
+ * mismatch is reported. Blank lines and lines starting with # are skipped.
+ *
+ * The rules are compiled into a table by field and case, so each comparison only tries the
+ * rules for its own field.
+ */
+class ReconcileRules {
+    enum Case {
+        MISSING,
+        MISMATCH
+    }
+
+    enum Action {
+        COPY_TO_FILE,
+        CLEAR,
+        MOVE_TO_COMMENT,
+        IGNORE,
+        REPORT
+    }
+
+    static class Rule {
+        // Applied to the genre in the tag and the library's value
+        final BiPredicate<String, String> condition;
+        final Action action;
+        final String label;
+
+        Rule(BiPredicate<String, String> condition, Action action, String label) {
+            this.condition = condition;
+            this.action = action;
+            this.label = label;
+        }
+    }
+
+    private static final Rule COPY = new Rule((genre, value) -> true, Action.COPY_TO_FILE, null);
+    private static final Rule REPORT = new Rule((genre, value) -> true, Action.REPORT, null);
+
+    // Indexed by position in SyncITunesAndFiles.FIELDS, then by case
+    private final Rule[][][] table;
+
+    private ReconcileRules(Rule[][][] table) {
+        this.table = table;
+    }
+
+    // The rule to apply to the field, given by its position in SyncITunesAndFiles.FIELDS
+    Rule find(int field, Case c, String genre, String value) {
+        for (Rule rule : table[field][c.ordinal()]) {
+            if (rule.condition.test(genre, value)) {
+                return rule;
+            }
+        }
+        return c == Case.MISSING ? COPY : REPORT;
+    }
+
+    static ReconcileRules load(BufferedReader r, SyncITunesAndFiles.FieldDescriptor[] fields) throws IOException {
+        List<List<List<Rule>>> rules = new ArrayList<List<List<Rule>>>();
+        for (int i = 0; i < fields.length; i++) {
+            List<List<Rule>> byCase = new ArrayList<List<Rule>>();
+            for (int j = 0; j < Case.values().length; j++) {
+                byCase.add(new ArrayList<Rule>());
+            }
+            rules.add(byCase);
+        }
+
+        int lineNumber = 0;
+        while (true) {
+            String line = r.readLine();
+            if (line == null) {
+                break;
+            }
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] split = line.split("\\s+", 5);
+            if (split.length < 4) {
+                throw new IllegalArgumentException(String.format("Rule %d: expected fields, case, condition and action", lineNumber));
+            }
+            Case c = parseCase(split[1], lineNumber);
+            Rule rule = new Rule(parseCondition(split[2], lineNumber), parseAction(split[3], c, lineNumber),
+                    split.length > 4 ? split[4] : null);
+            if (rule.action == Action.MOVE_TO_COMMENT && rule.label == null) {
+                throw new IllegalArgumentException(String.format("Rule %d: moveToComment needs a label", lineNumber));
+            }
+            for (String name : split[0].split(",")) {
+                int field = indexOf(fields, name, lineNumber);
+                rules.get(field).get(c.ordinal()).add(rule);
+            }
+        }
+
+        Rule[][][] table = new Rule[fields.length][][];
+        for (int i = 0; i < fields.length; i++) {
+            table[i] = new Rule[Case.values().length][];
+            for (int j = 0; j < table[i].length; j++) {
+                List<Rule> list = rules.get(i).get(j);
+                table[i][j] = list.toArray(new Rule[list.size()]);
+            }
+        }
+        return new ReconcileRules(table);
+    }
+
+    private static int indexOf(SyncITunesAndFiles.FieldDescriptor[] fields, String name, int lineNumber) {
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].iTunesMethodName.equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Rule %d: unknown field %s", lineNumber, name));
+    }
+
+    private static Case parseCase(String s, int lineNumber) {
+        switch (s) {
+        case "missing":
+            return Case.MISSING;
+        case "mismatch":
+            return Case.MISMATCH;
+        default:
+            throw new IllegalArgumentException(String.format("Rule %d: unknown case %s", lineNumber, s));
+        }
+    }
+
+    private static BiPredicate<String, String> parseCondition(String s, int lineNumber) {
+        if (s.equals("*")) {
+            return (genre, value) -> true;
+        }
+        int eq = s.indexOf('=');
+        if (eq < 0) {
+            throw new IllegalArgumentException(String.format("Rule %d: bad condition %s", lineNumber, s));
+        }
+        final boolean negated = eq > 0 && s.charAt(eq - 1) == '!';
+        String subject = s.substring(0, negated ? eq - 1 : eq);
+        final Set<String> values = new HashSet<String>(Arrays.asList(s.substring(eq + 1).split("\\|")));
+        switch (subject) {
+        case "genre":
+            return (genre, value) -> values.contains(genre) != negated;
+        case "value":
+            return (genre, value) -> values.contains(value) != negated;
+        default:
+            throw new IllegalArgumentException(String.format("Rule %d: unknown condition %s", lineNumber, subject));
+        }
+    }
+
+    private static Action parseAction(String s, Case c, int lineNumber) {
+        Action action;
+        switch (s) {
+        case "copyToFile":
+            action = Action.COPY_TO_FILE;
+            break;
+        case "clear":
+            action = Action.CLEAR;
+            break;
+        case "moveToComment":
+            action = Action.MOVE_TO_COMMENT;
+            break;
+        case "ignore":
+            return Action.IGNORE;
+        case "report":
+            action = Action.REPORT;
+            break;
+        default:
+            throw new IllegalArgumentException(String.format("Rule %d: unknown action %s", lineNumber, s));
+        }
+        if ((action == Action.REPORT) != (c == Case.MISMATCH)) {
+            throw new IllegalArgumentException(String.format("Rule %d: %s doesn't apply to %s", lineNumber, s, c.name().toLowerCase()));
+        }
+        return action;
+    }
+}
@@ -1,9 +1,17 @@
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Method;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 import org.jaudiotagger.audio.AudioFile;
 import org.jaudiotagger.audio.AudioFileIO;
@@ -13,16 +21,10 @@ import org.jaudiotagger.audio.exceptions.InvalidAudioFrameException;
 import org.jaudiotagger.audio.exceptions.ReadOnlyFileException;
 import org.jaudiotagger.tag.FieldDataInvalidException;
 import org.jaudiotagger.tag.FieldKey;
-import org.jaudiotagger.tag.KeyNotFoundException;
 import org.jaudiotagger.tag.Tag;
 import org.jaudiotagger.tag.TagException;
 import org.jaudiotagger.tag.TagField;
 import org.jaudiotagger.tag.TagTextField;
-import org.jvnet.com4j.generated.ClassFactory;
-import org.jvnet.com4j.generated.IITFileOrCDTrack;
-import org.jvnet.com4j.generated.IITLibraryPlaylist;
-import org.jvnet.com4j.generated.IITTrackCollection;
-import org.jvnet.com4j.generated.IiTunes;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
@@ -34,6 +36,34 @@ public class SyncITunesAndFiles {
     
     @Option(name="-updateITunes")
     private boolean updateITunes;
+    
+    // Read an exported iTunes Music Library.xml instead of asking iTunes
+    @Option(name="-libraryXml")
+    private String libraryXml;
+    
+    // Rewrites the start of track locations, as FROM=TO, for a library exported on another machine
+    @Option(name="-relocate")
+    private String relocate;
+    
+    // Number of threads reading and writing the files; the library is only used from the main thread
+    @Option(name="-threads")
+    private int threads = Runtime.getRuntime().availableProcessors();
+    
+    // Tracks and files unchanged since they were recorded here are not reconciled again
+    @Option(name="-checkpoint")
+    private String checkpointFile = "library.ckp";
+    
+    // Reconcile every track, whatever the checkpoint says
+    @Option(name="-full")
+    private boolean full;
+    
+    // Bytes left free after the frames when an ID3v2 tag has outgrown its file and the file is rewritten
+    @Option(name="-tagPadding")
+    private int tagPadding = 4096;
+    
+    // How differences are settled; defaults to the reconcile.rules built in
+    @Option(name="-rules")
+    private String rulesFile;
 
     public static void main(String[] args) {
         new SyncITunesAndFiles().doMain(args);
@@ -51,102 +81,157 @@ public class SyncITunesAndFiles {
             return;
         }
         
-        initFieldDescriptors();
+        try {
+            rules = loadRules();
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.format("Error reading rules: %s\n", e.getMessage());
+            return;
+        }
+        tagWriter = new TagWriter(tagPadding);
         
-        IiTunes iTunes = ClassFactory.createiTunesApp();
-        IITLibraryPlaylist playlist = iTunes.libraryPlaylist();
-        IITTrackCollection tracks = playlist.tracks();
-        int count = tracks.count();
-        for (int i = 1; i <= count; i++) {
-            IITFileOrCDTrack track = tracks.item(i).queryInterface(IITFileOrCDTrack.class);
-            try {
-                doOneTrack(track);
-            } catch (Exception e) {
-                System.err.format("Exception processing track: %s\n", trackToString(track));
-                e.printStackTrace();
+        try (TrackLibrary library = openLibrary()) {
+            if (updateITunes && ! library.isWritable()) {
+                System.err.println("-updateITunes needs iTunes itself, not a library file");
+                return;
             }
+            Path checkpointPath = FileSystems.getDefault().getPath(checkpointFile);
+            final Checkpoint checkpoint = Checkpoint.load(checkpointPath, rulesHash);
+            final AtomicInteger reconciled = new AtomicInteger();
+            final AtomicInteger unchanged = new AtomicInteger();
+            final AtomicInteger unsettled = new AtomicInteger();
+            TrackLibrary.Filter filter = full ? TrackLibrary.ALL : (persistentId, modified, location) -> {
+                if (checkpoint.isUnchanged(persistentId, modified, FileSystems.getDefault().getPath(relocate(location)))) {
+                    unchanged.incrementAndGet();
+                    return false;
+                }
+                return true;
+            };
+            libraryThread = new LibraryThread(library, threads);
+            libraryThread.run(filter, track -> {
+                TrackState state = new TrackState(track);
+                try {
+                    boolean settled = doOneTrack(state);
+                    reconciled.incrementAndGet();
+                    // A track with a fix left undone is looked at again next time
+                    if (settled) {
+                        checkpoint.record(state.track.persistentId, state.track.modified, FileSystems.getDefault().getPath(relocate(state.track.location)));
+                    } else {
+                        unsettled.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    System.err.format("Exception processing track: %s\n", trackToString(state.track));
+                    e.printStackTrace();
+                }
+            });
+            System.out.format("Reconciled %d tracks, %d of them with fixes left undone, %d unchanged since the last run\n",
+                    reconciled.get(), unsettled.get(), unchanged.get());
+            System.out.format("Wrote %d tags in place and rewrote %d files\n",
+                    SyncMetrics.INSTANCE.inPlaceWrites.get(), SyncMetrics.INSTANCE.tagRewrites.get());
+            checkpoint.save();
+        } catch (IOException e) {
+            System.err.format("Error reading library: %s\n", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
 
     }
     
-    public static Object[][] FIELDS = {
-        {FieldKey.ALBUM, "album"},
-        {FieldKey.ALBUM_ARTIST, "albumArtist"},
-        {FieldKey.ARTIST, "artist"},
-        {FieldKey.ALBUM_ARTIST, "albumArtist"},
-        {FieldKey.COMMENT, "comment"},
-        {FieldKey.COMPOSER, "composer"},
-        {FieldKey.DISC_NO, "discNumber"},
-        {FieldKey.DISC_TOTAL, "discCount"},
-        {FieldKey.GENRE, "genre"},
-        {FieldKey.TITLE, "name"},
-        {FieldKey.TRACK, "trackNumber"},
+    // Also sets rulesHash, which tells the checkpoint when the rules have changed
+    private ReconcileRules loadRules() throws IOException {
+        StringBuilder text = new StringBuilder();
+        try (BufferedReader r = rulesFile != null
+                ? Files.newBufferedReader(FileSystems.getDefault().getPath(rulesFile), StandardCharsets.UTF_8)
+                : new BufferedReader(new InputStreamReader(SyncITunesAndFiles.class.getResourceAsStream("/reconcile.rules"), StandardCharsets.UTF_8))) {
+            for (String line = r.readLine(); line != null; line = r.readLine()) {
+                text.append(line).append('\n');
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(text.toString().getBytes(StandardCharsets.UTF_8));
+        rulesHash = String.format("%08x", crc.getValue());
+        return ReconcileRules.load(new BufferedReader(new StringReader(text.toString())), FIELDS);
+    }
+    
+    private TrackLibrary openLibrary() {
+        List<String> fields = new ArrayList<String>();
+        for (FieldDescriptor fieldDescriptor : FIELDS) {
+            fields.add(fieldDescriptor.iTunesMethodName);
+        }
+        if (libraryXml != null) {
+            return new ITunesXmlLibrary(FileSystems.getDefault().getPath(libraryXml), fields);
+        }
+        return new ITunesComLibrary(fields);
+    }
+    
+    // The fields compared between the library and the tags
+    static final FieldDescriptor[] FIELDS = {
+        new FieldDescriptor(FieldKey.ALBUM, "album"),
+        new FieldDescriptor(FieldKey.ALBUM_ARTIST, "albumArtist"),
+        new FieldDescriptor(FieldKey.ARTIST, "artist"),
+        new FieldDescriptor(FieldKey.COMMENT, "comment"),
+        new FieldDescriptor(FieldKey.COMPOSER, "composer"),
+        new FieldDescriptor(FieldKey.DISC_NO, "discNumber"),
+        new FieldDescriptor(FieldKey.DISC_TOTAL, "discCount"),
+        new FieldDescriptor(FieldKey.GENRE, "genre"),
+        new FieldDescriptor(FieldKey.TITLE, "name"),
+        new FieldDescriptor(FieldKey.TRACK, "trackNumber"),
     };
     
-    private static class FieldDescriptor {
+    static class FieldDescriptor {
         final String iTunesMethodName;
         final FieldKey fieldKey;
-        Method getter = null;
-        Method setter = null;
 
         FieldDescriptor(FieldKey fieldKey, String iTunesMethodName) {
             this.fieldKey = fieldKey;
             this.iTunesMethodName = iTunesMethodName;
-            
-            Method[] methods = IITFileOrCDTrack.class.getMethods();
-
-            for (Method method : methods) {
-                if (method.getName().equals(iTunesMethodName)) {
-                    Class<?>[] paramTypes = method.getParameterTypes();
-                    if (paramTypes.length == 0) {
-                        getter = method;
-                    } else {
-                        setter = method; 
-                    }
-                }
-            }
-            if (getter == null) {
-                throw new InternalError("No getter found for: " + iTunesMethodName);
-            }
-            if (setter == null) {
-                throw new InternalError("No setter found for: " + iTunesMethodName);
-            }
-            
         }
     }
-    private List<FieldDescriptor> fieldDescriptors = new ArrayList<FieldDescriptor>();
     
-    private void initFieldDescriptors() {
-        for (Object[] pair : FIELDS) {
-            fieldDescriptors.add(new FieldDescriptor((FieldKey) pair[0], (String) pair[1]));
+    private ReconcileRules rules;
+    private String rulesHash;
+    private TagWriter tagWriter;
+    
+    private LibraryThread libraryThread;
+    
+    // A track being reconciled; the record is replaced when iTunes is updated
+    private static class TrackState {
+        TrackLibrary.Track track;
+
+        TrackState(TrackLibrary.Track track) {
+            this.track = track;
         }
-        
     }
-
-    private void doOneTrack(IITFileOrCDTrack track) throws CannotReadException, IOException, TagException, ReadOnlyFileException, InvalidAudioFrameException {
-        String location = track.location();
-        //System.out.format("<%s>, <%s>, <%s>\n", track.album(), track.name(), location);
+    
+    // Returns whether the track is settled as far as this run's options go, so it needn't be looked
+    // at again until the track, its file or the rules change
+    private boolean doOneTrack(TrackState state) throws CannotReadException, IOException, TagException, ReadOnlyFileException, InvalidAudioFrameException {
+        String location = relocate(state.track.location);
+        //System.out.format("<%s>, <%s>, <%s>\n", state.track.get("album"), state.track.get("name"), location);
         
         if (location == null) {
-            return;
+            return false;
         }
         AudioFile file = AudioFileIO.read(new File(location));
         Tag tag = file.getTag();
         
         String genre = tag.getFirst(FieldKey.GENRE);
 
-        boolean modified = false;
-        for (FieldDescriptor fieldDescriptor : fieldDescriptors) {
-            modified |= doOneField(genre, tag, fieldDescriptor, track);    
+        List<SyncPlan.FieldChange> changes = new ArrayList<SyncPlan.FieldChange>();
+        boolean settled = true;
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (! doOneField(genre, tag, i, state, changes)) {
+                settled = false;
+            }
         }
-        if (modified) {
+        if (! changes.isEmpty()) {
             try {
-                file.commit();
-            } catch (CannotWriteException e) {
+                tagWriter.write(FileSystems.getDefault().getPath(location), file, changes);
+            } catch (CannotWriteException | FieldDataInvalidException e) {
                 System.err.format("Error committing changes to file: %s\n", location);
+                return false;
             }
         }
-        
+        return settled;
         
 //        showFields(tag);
     }
@@ -168,18 +253,33 @@ public class SyncITunesAndFiles {
         }
     }
 
-    private boolean doOneField(String genre, Tag tag, FieldDescriptor fieldDescriptor, IITFileOrCDTrack track) 
+    private String relocate(String location) {
+        if (relocate == null || location == null) {
+            return location;
+        }
+        String[] fromTo = relocate.split("=", 2);
+        if (location.startsWith(fromTo[0])) {
+            return fromTo[1] + location.substring(fromTo[0].length());
+        }
+        return location;
+    }
+
+    // Adds the value to be written to the file, if any, to the changes. Returns false if the rules
+    // call for a fix that this run's options leave undone.
+    private boolean doOneField(String genre, Tag tag, int field, TrackState state, List<SyncPlan.FieldChange> changes) 
     {
-        boolean modified = false;
+        FieldDescriptor fieldDescriptor = FIELDS[field];
         
-        final String iTunesValue = getItunesValue(track, fieldDescriptor.iTunesMethodName, fieldDescriptor.getter);
+        final String iTunesValue = state.track.get(fieldDescriptor.iTunesMethodName);
         List<String> fieldValues = tag.getAll(fieldDescriptor.fieldKey);
         int fieldValueCount = fieldValues.size();
 
         if (fieldValueCount == 0 || isEmpty(fieldValues.get(0))) {
             if (! isEmpty(iTunesValue)) {
-                modified |= handleMissingField(track, genre, tag, fieldDescriptor, iTunesValue);
+                ReconcileRules.Rule rule = rules.find(field, ReconcileRules.Case.MISSING, genre, iTunesValue);
+                return handleMissingField(state, rule, fieldDescriptor, iTunesValue, changes);
             }
+            return true;
         } else {
             boolean found = false;
             for (String fieldValue : fieldValues) {
@@ -188,107 +288,62 @@ public class SyncITunesAndFiles {
                     break;
                 }
             }
-            if (! found) {
-                if (fieldDescriptor.fieldKey == FieldKey.COMMENT /* && Character.isDigit(fieldValues.get(0).charAt(0))*/) {
-                    
-                } else {
-                    System.err.format("No match for \"%s\" track %s; iTunes=<%s>, tags=%s\n", fieldDescriptor.iTunesMethodName, trackToString(track), iTunesValue, fieldValues);
-                }
+            if (! found && rules.find(field, ReconcileRules.Case.MISMATCH, genre, iTunesValue).action == ReconcileRules.Action.REPORT) {
+                System.err.format("No match for \"%s\" track %s; iTunes=<%s>, tags=%s\n", fieldDescriptor.iTunesMethodName, trackToString(state.track), iTunesValue, fieldValues);
             }
+            // A mismatch is only ever reported, which has been done
+            return true;
         }
-        return modified;
-    }
-
-    private String getItunesValue(IITFileOrCDTrack track, String iTunesMethodName, Method getter) 
-    {
-        final String iTunesValue;
-        final Object obj;
-        try {
-            obj = getter.invoke(track);
-        } catch (Exception e) {
-            throw new InternalError(e.toString());
-        }
-        if (obj == null) {
-            iTunesValue = null;
-        }
-        else if (obj instanceof String) {
-            iTunesValue = (String) obj;
-        } else if (obj instanceof Integer) {
-            iTunesValue = Integer.toString((Integer) obj);
-        } else {
-            throw new InternalError(String.format("Unknown return type (%s) for: %s", obj.getClass(), iTunesMethodName));
-        }
-        return iTunesValue;
     }
 
-    private boolean handleMissingField(IITFileOrCDTrack track, String genre, Tag tag, FieldDescriptor fieldDescriptor, String iTunesValue) {
+    // Returns false if the fix the rule calls for is left undone
+    private boolean handleMissingField(TrackState state, ReconcileRules.Rule rule, FieldDescriptor fieldDescriptor, String iTunesValue, List<SyncPlan.FieldChange> changes) {
         String iTunesMethodName = fieldDescriptor.iTunesMethodName;
-        
-        // Handle artist fields for classical and podcast tracks specially
         FieldKey fieldKey = fieldDescriptor.fieldKey;
-        if ((genre.equals("Classical") || genre.equals("Podcast")) && 
-                (fieldKey == FieldKey.ALBUM_ARTIST || fieldKey == FieldKey.ARTIST)) 
-        {
+        
+        switch (rule.action) {
+        case MOVE_TO_COMMENT:
+            // The value is kept in the comment, as (<label>: <value>), unless there is one there already
             if (updateITunes) {
-                try {
-                    System.out.format("Clearing iTunes artist info in %s\n", trackToString(track));
-                    fieldDescriptor.setter.invoke(track, "");
-                    String comment = track.comment();
-                    if (comment == null || ! comment.contains("(")) {
-                        String newComment = String.format("%s(%s: %s)", 
-                                                comment == null ? "" : comment + " ", 
-                                                fieldKey == FieldKey.ALBUM_ARTIST ? "Album artist" : "Artist", 
-                                                iTunesValue);
-                        track.comment(newComment);
-                    }
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+                System.out.format("Clearing iTunes %s info in %s\n", iTunesMethodName, trackToString(state.track));
+                state.track = libraryThread.set(state.track, iTunesMethodName, "");
+                String comment = state.track.get("comment");
+                if (comment == null || ! comment.contains("(")) {
+                    String newComment = String.format("%s(%s: %s)", 
+                                            comment == null ? "" : comment + " ", 
+                                            rule.label, 
+                                            iTunesValue);
+                    state.track = libraryThread.set(state.track, "comment", newComment);
                 }
             }
-            return false;
-        }
-        // Handle the composer field for non-classical tracks specially
-        if (! genre.equals("Classical") && fieldKey == FieldKey.COMPOSER) {
+            return updateITunes;
+        case CLEAR:
             if (updateITunes) {
-                try {
-                    System.out.format("Clearing iTunes composer info in %s\n", trackToString(track));
-                    fieldDescriptor.setter.invoke(track, "");
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
+                System.out.format("Clearing iTunes %s info in %s\n", iTunesMethodName, trackToString(state.track));
+                state.track = libraryThread.set(state.track, iTunesMethodName, "");
             }
-            return false;
-        }
-        
-        // Ignore disk number/total differences
-        if ((fieldKey == FieldKey.DISC_NO || fieldKey == FieldKey.DISC_TOTAL || fieldKey == FieldKey.TRACK) && iTunesValue.equals("0")) {
-            return false;
+            return updateITunes;
+        case IGNORE:
+            return true;
+        default:
+            break;
         }
         
         if (! updateFile) {
             return false;
         }
         
-        System.err.format("Missing field \"%s\" in track %s; iTunes=<%s>\n", iTunesMethodName, trackToString(track), iTunesValue);
-        try {
-            tag.setField(fieldKey, iTunesValue);
-            return true;
-        } catch (KeyNotFoundException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        } catch (FieldDataInvalidException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
-        return false;
+        System.err.format("Missing field \"%s\" in track %s; iTunes=<%s>\n", iTunesMethodName, trackToString(state.track), iTunesValue);
+        changes.add(new SyncPlan.FieldChange(fieldKey, null, iTunesValue));
+        return true;
     }
 
     private boolean isEmpty(String s) {
         return s == null || s.length() == 0;
     }
 
-    private String trackToString(IITFileOrCDTrack track) {
-        return String.format("<%s, %s, %s>", track.album(), track.name(), track.location());
+    private String trackToString(TrackLibrary.Track track) {
+        return String.format("<%s, %s, %s>", track.get("album"), track.get("name"), track.location);
     }
 
 }
@@ -0,0 +1,280 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters, phase timings and operation latencies for one run. There is a single instance, which
+ * is registered with the platform MBean server and written out as JSON at the end of the run.
+ *
+ * Phases follow one another: starting a phase ends the one before. Operations are timed
+ * individually and may overlap, e.g. tag reads on several scan threads.
+ */
+class SyncMetrics implements SyncMetricsMXBean {
+    static final SyncMetrics INSTANCE = new SyncMetrics();
+
+    // Audio files found by the walk, and how many of them came from the previous index
+    final AtomicLong filesWalked = new AtomicLong();
+    final AtomicLong indexHits = new AtomicLong();
+    // Audio files left out by the walk filter, and directories it didn't go into
+    final AtomicLong filesFiltered = new AtomicLong();
+    final AtomicLong dirsPruned = new AtomicLong();
+    final AtomicLong tagsParsed = new AtomicLong();
+    // Files whose tags were read from the headers, without jaudiotagger
+    final AtomicLong headerReads = new AtomicLong();
+    final AtomicLong parseErrors = new AtomicLong();
+    final AtomicLong transcodes = new AtomicLong();
+    final AtomicLong transcodeFailures = new AtomicLong();
+    final AtomicLong commits = new AtomicLong();
+    final AtomicLong commitErrors = new AtomicLong();
+    // Tags written over the old ones, and files written again because their tag had grown
+    final AtomicLong inPlaceWrites = new AtomicLong();
+    final AtomicLong tagRewrites = new AtomicLong();
+    // Size of the files transcoded and updated
+    final AtomicLong bytesWritten = new AtomicLong();
+
+    final Latency tagRead = new Latency();
+    final Latency transcode = new Latency();
+    final Latency commit = new Latency();
+
+    private final long startTime = System.currentTimeMillis();
+    private final Map<String, Long> phaseMillis = new LinkedHashMap<String, Long>();
+    private String phase;
+    private long phaseStart;
+
+    private SyncMetrics() {
+    }
+
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("mishkin.mp3sync:type=SyncMetrics"));
+        } catch (JMException e) {
+            System.out.format("Error registering metrics: %s\n", e);
+        }
+    }
+
+    synchronized void startPhase(String name) {
+        endPhase();
+        phase = name;
+        phaseStart = System.nanoTime();
+    }
+
+    synchronized void endPhase() {
+        if (phase != null) {
+            phaseMillis.merge(phase, (System.nanoTime() - phaseStart) / 1000000, Long::sum);
+            phase = null;
+        }
+    }
+
+    public synchronized String getPhase() {
+        return phase != null ? phase : "idle";
+    }
+
+    public long getFilesWalked() {
+        return filesWalked.get();
+    }
+
+    public long getIndexHits() {
+        return indexHits.get();
+    }
+
+    public long getFilesFiltered() {
+        return filesFiltered.get();
+    }
+
+    public long getDirsPruned() {
+        return dirsPruned.get();
+    }
+
+    public long getTagsParsed() {
+        return tagsParsed.get();
+    }
+
+    public long getHeaderReads() {
+        return headerReads.get();
+    }
+
+    public long getParseErrors() {
+        return parseErrors.get();
+    }
+
+    public long getTranscodes() {
+        return transcodes.get();
+    }
+
+    public long getTranscodeFailures() {
+        return transcodeFailures.get();
+    }
+
+    public long getCommits() {
+        return commits.get();
+    }
+
+    public long getCommitErrors() {
+        return commitErrors.get();
+    }
+
+    public long getInPlaceWrites() {
+        return inPlaceWrites.get();
+    }
+
+    public long getTagRewrites() {
+        return tagRewrites.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public synchronized Map<String, Long> getPhaseMillis() {
+        return new LinkedHashMap<String, Long>(phaseMillis);
+    }
+
+    public Map<String, Double> getLatencies() {
+        Map<String, Double> map = new LinkedHashMap<String, Double>();
+        for (Map.Entry<String, Latency> entry : latencies().entrySet()) {
+            Latency latency = entry.getValue();
+            map.put(entry.getKey() + ".count", (double) latency.count());
+            map.put(entry.getKey() + ".p50", latency.percentileMillis(0.5));
+            map.put(entry.getKey() + ".p99", latency.percentileMillis(0.99));
+            map.put(entry.getKey() + ".max", latency.maxMillis());
+        }
+        return map;
+    }
+
+    private Map<String, Latency> latencies() {
+        Map<String, Latency> map = new LinkedHashMap<String, Latency>();
+        map.put("tagRead", tagRead);
+        map.put("transcode", transcode);
+        map.put("commit", commit);
+        return map;
+    }
+
+    // Writes everything as a single JSON object, to be compared across runs
+    void writeJson(Path path) throws IOException {
+        try (PrintStream out = new PrintStream(Files.newOutputStream(path), false, "UTF-8")) {
+            out.format(Locale.ROOT, "{\n  \"start\": %s,\n  \"elapsedMillis\": %d,\n",
+                    quote(String.format(Locale.ROOT, "%tFT%<tT%<tz", new Date(startTime))),
+                    System.currentTimeMillis() - startTime);
+            out.format(Locale.ROOT, "  \"counters\": {\n    \"filesWalked\": %d,\n    \"indexHits\": %d,\n"
+                    + "    \"filesFiltered\": %d,\n    \"dirsPruned\": %d,\n    \"tagsParsed\": %d,\n    \"headerReads\": %d,\n    \"parseErrors\": %d,\n    \"transcodes\": %d,\n"
+                    + "    \"transcodeFailures\": %d,\n    \"commits\": %d,\n    \"commitErrors\": %d,\n"
+                    + "    \"inPlaceWrites\": %d,\n    \"tagRewrites\": %d,\n    \"bytesWritten\": %d\n  },\n",
+                    filesWalked.get(), indexHits.get(), filesFiltered.get(), dirsPruned.get(), tagsParsed.get(), headerReads.get(), parseErrors.get(), transcodes.get(),
+                    transcodeFailures.get(), commits.get(), commitErrors.get(), inPlaceWrites.get(), tagRewrites.get(),
+                    bytesWritten.get());
+            out.print("  \"phaseMillis\": {");
+            String separator = "\n";
+            for (Map.Entry<String, Long> entry : getPhaseMillis().entrySet()) {
+                out.format(Locale.ROOT, "%s    %s: %d", separator, quote(entry.getKey()), entry.getValue());
+                separator = ",\n";
+            }
+            out.print("\n  },\n  \"latencyMillis\": {");
+            separator = "\n";
+            for (Map.Entry<String, Latency> entry : latencies().entrySet()) {
+                Latency latency = entry.getValue();
+                out.format(Locale.ROOT, "%s    %s: { \"count\": %d, \"total\": %.3f, \"p50\": %.3f, \"p99\": %.3f, \"max\": %.3f }",
+                        separator, quote(entry.getKey()), latency.count(), latency.totalMillis(),
+                        latency.percentileMillis(0.5), latency.percentileMillis(0.99), latency.maxMillis());
+                separator = ",\n";
+            }
+            out.print("\n  }\n}\n");
+        }
+    }
+
+    // As a JSON string
+    static String quote(String s) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * A histogram of durations in nanoseconds. Each power of two is split into eight buckets, so a
+     * percentile is overstated by at most an eighth, and recording takes no locks.
+     */
+    static class Latency {
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        // Records the time since start, a System.nanoTime() value
+        void since(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        void record(long nanos) {
+            nanos = Math.max(nanos, 0);
+            counts.incrementAndGet(bucket(nanos));
+            count.incrementAndGet();
+            total.addAndGet(nanos);
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        long count() {
+            return count.get();
+        }
+
+        double totalMillis() {
+            return total.get() / 1e6;
+        }
+
+        double maxMillis() {
+            return max.get() / 1e6;
+        }
+
+        double percentileMillis(double p) {
+            long target = (long) Math.ceil(p * count.get());
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= Math.max(target, 1)) {
+                    return Math.min(upperBound(i), max.get()) / 1e6;
+                }
+            }
+            return 0;
+        }
+
+        private static int bucket(long nanos) {
+            if (nanos < SUB_BUCKETS) {
+                return (int) nanos;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return ((exponent - SUB_BITS + 1) << SUB_BITS) + sub;
+        }
+
+        // The largest value that falls in the bucket
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = (bucket >> SUB_BITS) + SUB_BITS - 1;
+            int sub = bucket & (SUB_BUCKETS - 1);
+            return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+import java.util.Map;
+
+/**
+ * What a running sync exposes over JMX, as mishkin.mp3sync:type=SyncMetrics. Run with
+ * -Dcom.sun.management.jmxremote.port=... to watch a sync from another machine.
+ */
+public interface SyncMetricsMXBean {
+    // The phase being run, or "idle"
+    String getPhase();
+
+    long getFilesWalked();
+
+    long getIndexHits();
+
+    long getFilesFiltered();
+
+    long getDirsPruned();
+
+    long getTagsParsed();
+
+    long getHeaderReads();
+
+    long getParseErrors();
+
+    long getTranscodes();
+
+    long getTranscodeFailures();
+
+    long getCommits();
+
+    long getCommitErrors();
+
+    // Commits that only wrote the tag, and those that wrote the whole file
+    long getInPlaceWrites();
+
+    long getTagRewrites();
+
+    long getBytesWritten();
+
+    // Milliseconds spent in each phase finished so far
+    Map<String, Long> getPhaseMillis();
+
+    // Count, p50, p99 and max of each timed operation, as "<operation>.<statistic>"
+    Map<String, Double> getLatencies();
+}
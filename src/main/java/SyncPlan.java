@@ -0,0 +1,230 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jaudiotagger.tag.FieldKey;
+
+/**
+ * Everything a sync run is going to do, worked out from the indexes before any file is touched.
+ * A plan can be printed, saved to a file and loaded back to be executed later.
+ *
+ * The saved form has one action per line, with tab-separated values; tabs, newlines and
+ * backslashes within values are escaped with a backslash and a null value is written as \N.
+ */
+class SyncPlan {
+    enum Type {
+        // Transcode a source file that has no counterpart at the destination
+        COPY,
+        // Write changed tag values into a destination file
+        UPDATE,
+        // Remove a destination file that has no counterpart at the source
+        DELETE,
+        // Move a destination file to where its source file now puts it; the current
+        // destination path is in srcPath and the new one in dstPath
+        RENAME,
+        // Two files with the same key; for information only
+        DUPLICATE
+    }
+
+    static class FieldChange {
+        final FieldKey field;
+        final String oldValue;
+        final String newValue;
+
+        FieldChange(FieldKey field, String oldValue, String newValue) {
+            this.field = field;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+    }
+
+    static class Action {
+        final Type type;
+        final String key;
+        final String srcPath;
+        final String dstPath;
+        final List<FieldChange> changes;
+
+        Action(Type type, String key, String srcPath, String dstPath, List<FieldChange> changes) {
+            this.type = type;
+            this.key = key;
+            this.srcPath = srcPath;
+            this.dstPath = dstPath;
+            this.changes = changes;
+        }
+
+        Path src() {
+            return FileSystems.getDefault().getPath(srcPath);
+        }
+
+        Path dst() {
+            return FileSystems.getDefault().getPath(dstPath);
+        }
+    }
+
+    private final List<Action> actions = new ArrayList<Action>();
+
+    void add(Action action) {
+        actions.add(action);
+    }
+
+    void addCopy(String key, String srcPath, String dstPath) {
+        add(new Action(Type.COPY, key, srcPath, dstPath, Collections.<FieldChange>emptyList()));
+    }
+
+    void addUpdate(String key, String srcPath, String dstPath, List<FieldChange> changes) {
+        add(new Action(Type.UPDATE, key, srcPath, dstPath, changes));
+    }
+
+    void addDelete(String key, String dstPath) {
+        add(new Action(Type.DELETE, key, null, dstPath, Collections.<FieldChange>emptyList()));
+    }
+
+    void addRename(String key, String oldDstPath, String newDstPath) {
+        add(new Action(Type.RENAME, key, oldDstPath, newDstPath, Collections.<FieldChange>emptyList()));
+    }
+
+    // For a duplicate the kept file goes in srcPath and the other one in dstPath
+    void addDuplicate(String key, String keptPath, String otherPath) {
+        add(new Action(Type.DUPLICATE, key, keptPath, otherPath, Collections.<FieldChange>emptyList()));
+    }
+
+    List<Action> actions() {
+        return actions;
+    }
+
+    List<Action> actions(Type type) {
+        List<Action> list = new ArrayList<Action>();
+        for (Action action : actions) {
+            if (action.type == type) {
+                list.add(action);
+            }
+        }
+        return list;
+    }
+
+    Map<Type, Integer> counts() {
+        Map<Type, Integer> counts = new EnumMap<Type, Integer>(Type.class);
+        for (Type type : Type.values()) {
+            counts.put(type, 0);
+        }
+        for (Action action : actions) {
+            counts.put(action.type, counts.get(action.type) + 1);
+        }
+        return counts;
+    }
+
+    void print(PrintStream out) {
+        for (Action action : actions) {
+            switch (action.type) {
+            case COPY:
+                out.format("Copy: %s -> %s\n", action.srcPath, action.dstPath);
+                break;
+            case UPDATE:
+                out.format("Update: %s\n", action.dstPath);
+                for (FieldChange change : action.changes) {
+                    out.format("  %s: <%s> -> <%s>\n", change.field, change.oldValue, change.newValue);
+                }
+                break;
+            case DELETE:
+                out.format("Delete: %s\n", action.dstPath);
+                break;
+            case RENAME:
+                out.format("Rename: %s -> %s\n", action.srcPath, action.dstPath);
+                break;
+            case DUPLICATE:
+                out.format("Duplicate for key <%s>:\n  %s\n  %s\n", action.key, action.srcPath, action.dstPath);
+                break;
+            }
+        }
+        out.format("Plan: %s\n", counts());
+    }
+
+    void save(Path planPath) throws IOException {
+        try (PrintStream w = new PrintStream(Files.newOutputStream(planPath), false, "UTF-8")) {
+            for (Action action : actions) {
+                StringBuilder line = new StringBuilder(action.type.name());
+                append(line, action.key);
+                append(line, action.srcPath);
+                append(line, action.dstPath);
+                for (FieldChange change : action.changes) {
+                    append(line, change.field.name());
+                    append(line, change.oldValue);
+                    append(line, change.newValue);
+                }
+                w.println(line);
+            }
+        }
+    }
+
+    static SyncPlan load(Path planPath) throws IOException {
+        SyncPlan plan = new SyncPlan();
+        try (BufferedReader r = Files.newBufferedReader(planPath, StandardCharsets.UTF_8)) {
+            while (true) {
+                String line = r.readLine();
+                if (line == null) {
+                    break;
+                }
+                String[] split = line.split("\t", -1);
+                List<FieldChange> changes = new ArrayList<FieldChange>();
+                for (int i = 4; i + 2 < split.length; i += 3) {
+                    changes.add(new FieldChange(FieldKey.valueOf(split[i]), unescape(split[i + 1]), unescape(split[i + 2])));
+                }
+                plan.add(new Action(Type.valueOf(split[0]), unescape(split[1]), unescape(split[2]), unescape(split[3]), changes));
+            }
+        }
+        return plan;
+    }
+
+    private static void append(StringBuilder line, String value) {
+        line.append('\t');
+        if (value == null) {
+            line.append("\\N");
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '\t': line.append("\\t"); break;
+            case '\n': line.append("\\n"); break;
+            case '\r': line.append("\\r"); break;
+            case '\\': line.append("\\\\"); break;
+            default: line.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String value) {
+        if (value.equals("\\N")) {
+            return null;
+        }
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder s = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                switch (next) {
+                case 't': s.append('\t'); break;
+                case 'n': s.append('\n'); break;
+                case 'r': s.append('\r'); break;
+                default: s.append(next);
+                }
+            } else {
+                s.append(c);
+            }
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,430 @@
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the destination in sync after the first run, for as long as the process runs. The source
+ * trees are watched for changes, and the changes are gathered into a batch until none has come
+ * for the debounce time, so that e.g. an album being copied in is synced in one go. Only the
+ * tracks whose keys the batch touches are planned, from entries held in memory, and the plan is
+ * carried out as usual. Keys left without a copy, or without a source, are paired by fingerprint
+ * as in a scan, so a tag edit that changes a track's key retags its copy.
+ *
+ * A file is only synced once its size and modification time have stayed the same for the
+ * debounce time, since its headers can be read long before it has all been written. Files still
+ * changing when a batch is synced are carried over to the next one.
+ *
+ * Everything is scanned again at a fixed interval, and whenever events were lost, for file
+ * systems (e.g. network shares) that don't report every change.
+ */
+class SyncWatcher {
+    // A batch is synced after this long even if changes keep coming
+    private static final long MAX_BATCH_DELAY_MILLIS = 30000;
+
+    private static final Path SRC_INDEX_PATH = FileSystems.getDefault().getPath("src.idx");
+
+    private final MusicFileSync sync;
+    private final Journal journal;
+    private final List<Path> srcRoots;
+    // The one destination, and where it is indexed
+    private final Profile profile;
+    private final Path dstIndexPath;
+    private final WalkFilter filter;
+    private final long debounceMillis;
+    private final long rescanMillis;
+    private final Map<WatchKey, Path> dirs = new HashMap<WatchKey, Path>();
+    // Files seen changing, as they were when last seen to change
+    private final Map<Path, Sighting> unsettled = new HashMap<Path, Sighting>();
+    private WatchService watchService;
+    private Tree src;
+    private Tree dst;
+
+    SyncWatcher(MusicFileSync sync, Journal journal, List<Path> srcRoots, Profile profile, WalkFilter filter, long debounceMillis,
+            long rescanMillis) {
+        this.sync = sync;
+        this.journal = journal;
+        this.srcRoots = srcRoots;
+        this.profile = profile;
+        this.dstIndexPath = FileSystems.getDefault().getPath(profile.indexName());
+        this.filter = filter;
+        this.debounceMillis = debounceMillis;
+        this.rescanMillis = rescanMillis;
+    }
+
+    // Starts from the indexes left by the run that carried out the plan, and never returns
+    void run(SyncPlan lastPlan) throws IOException, InterruptedException {
+        watchService = FileSystems.getDefault().newWatchService();
+        for (Path root : srcRoots) {
+            register(root, null);
+        }
+        load(lastPlan);
+        System.out.format("Watching %d directories\n", dirs.size());
+
+        Set<Path> changed = new LinkedHashSet<Path>();
+        boolean overflow = false;
+        long firstChange = 0;
+        long lastChange = 0;
+        long nextRescan = System.currentTimeMillis() + rescanMillis;
+        while (true) {
+            long now = System.currentTimeMillis();
+            long due = changed.isEmpty() && ! overflow ? nextRescan : Math.min(lastChange + debounceMillis, firstChange + MAX_BATCH_DELAY_MILLIS);
+            WatchKey key = due > now ? watchService.poll(due - now, TimeUnit.MILLISECONDS) : watchService.poll();
+            if (key != null) {
+                overflow |= takeEvents(key, changed);
+                lastChange = System.currentTimeMillis();
+                if (firstChange == 0) {
+                    firstChange = lastChange;
+                }
+                if (lastChange < firstChange + MAX_BATCH_DELAY_MILLIS) {
+                    continue;
+                }
+            }
+
+            now = System.currentTimeMillis();
+            if (overflow || now >= nextRescan) {
+                System.out.format(overflow ? "Changes were missed, scanning everything\n" : "Scanning everything\n");
+                rescan();
+                changed.clear();
+                overflow = false;
+                nextRescan = System.currentTimeMillis() + rescanMillis;
+            } else if (! changed.isEmpty()) {
+                Set<Path> carried = syncChanges(changed);
+                changed.clear();
+                changed.addAll(carried);
+            }
+            // Files still being written are looked at again after the debounce time
+            firstChange = changed.isEmpty() ? 0 : System.currentTimeMillis();
+            lastChange = firstChange;
+        }
+    }
+
+    // Adds the paths the events are about to the changes; returns whether events were lost
+    private boolean takeEvents(WatchKey key, Set<Path> changed) throws IOException {
+        boolean overflow = false;
+        Path dir = dirs.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                overflow = true;
+                continue;
+            }
+            Path path = dir.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                // Files may already be in it by the time it is watched
+                register(path, changed);
+            } else {
+                changed.add(path);
+            }
+        }
+        if (! key.reset()) {
+            dirs.remove(key);
+        }
+        return overflow;
+    }
+
+    // Watches every directory in the tree, adding the audio files in it to the changes if they aren't null
+    private void register(Path root, final Set<Path> changed) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (filter.skipDirectory(srcRoot(dir), dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                dirs.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                if (changed != null && MusicFileSync.isAudioFile(path)) {
+                    // Filtered with the rest of the batch
+                    changed.add(path);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // The source tree the path is in
+    private Path srcRoot(Path path) {
+        for (Path root : srcRoots) {
+            if (path.startsWith(root)) {
+                return root;
+            }
+        }
+        return path;
+    }
+
+    private void rescan() throws IOException, InterruptedException {
+        for (Path root : srcRoots) {
+            register(root, null);
+        }
+        unsettled.clear();
+        SyncPlan plan = sync.makePlan();
+        sync.execute(journal, plan);
+        load(plan);
+    }
+
+    // Reads both sides from the indexes, which don't yet know what the plan did to the destination
+    private void load(SyncPlan plan) throws IOException {
+        src = new Tree(TrackIndex.load(SRC_INDEX_PATH).entries());
+        dst = new Tree(TrackIndex.load(dstIndexPath).entries());
+        refresh(plan);
+        dst.toIndex().save(dstIndexPath);
+    }
+
+    // Plans and carries out what the changed source paths call for; returns the files that are
+    // still changing, which are left for the next batch
+    private Set<Path> syncChanges(Set<Path> changed) throws InterruptedException {
+        Set<Path> carried = new LinkedHashSet<Path>();
+        long now = System.currentTimeMillis();
+        Set<String> keys = new LinkedHashSet<String>();
+        for (Path path : changed) {
+            try {
+                if (Files.isRegularFile(path)) {
+                    if (! MusicFileSync.isAudioFile(path)) {
+                        continue;
+                    }
+                    BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                    if (! isSettled(path, attrs, now)) {
+                        carried.add(path);
+                        continue;
+                    }
+                    // Its copy, if it has one, is left alone like those of the other files left out
+                    if (! filter.accepts(srcRoot(path), path, attrs)) {
+                        continue;
+                    }
+                    TrackEntry old = src.byPath.get(path.toString());
+                    if (old != null && old.isUnchanged(attrs)) {
+                        continue;
+                    }
+                    // Unreadable while it is still being written; it will change again
+                    TrackEntry entry = MusicFileSync.readEntry(MusicFileSync.Side.SOURCE, path, attrs);
+                    if (entry != null) {
+                        if (old != null) {
+                            keys.add(old.key);
+                        }
+                        src.put(entry);
+                        keys.add(entry.key);
+                    }
+                } else if (! Files.exists(path)) {
+                    unsettled.remove(path);
+                    for (TrackEntry removed : src.removeUnder(path)) {
+                        keys.add(removed.key);
+                    }
+                }
+            } catch (IOException e) {
+                System.out.format("Error with file: %s (%s)\n", path, e.getMessage());
+            }
+        }
+        keys.remove(null);
+
+        SyncPlan plan = new SyncPlan();
+        // A tag edit that changes the key leaves the new key without a copy and the old one without
+        // a source; like a scan, they are paired by fingerprint so the copy is retagged
+        List<TrackEntry> srcUnmatched = new ArrayList<TrackEntry>();
+        List<TrackEntry> dstUnmatched = new ArrayList<TrackEntry>();
+        for (String key : keys) {
+            TrackEntry srcTrack = src.byKey.get(key);
+            // A track the profile keeps out is treated as gone from the source
+            if (srcTrack != null && ! profile.accepts(srcTrack)) {
+                srcTrack = null;
+            }
+            TrackEntry dstTrack = dst.byKey.get(key);
+            if (srcTrack != null && dstTrack == null) {
+                srcUnmatched.add(srcTrack);
+            } else if (srcTrack != null) {
+                sync.updateFile(plan, dstTrack, srcTrack, dstTrack.path);
+            } else if (dstTrack != null) {
+                dstUnmatched.add(dstTrack);
+            }
+        }
+        if (! srcUnmatched.isEmpty() || ! dstUnmatched.isEmpty()) {
+            sync.planUnmatched(plan, srcUnmatched, dstUnmatched);
+        }
+        if (plan.actions().isEmpty()) {
+            return carried;
+        }
+
+        System.out.format("Syncing %d changed paths: %d actions\n", changed.size(), plan.actions().size());
+        try {
+            sync.execute(journal, plan);
+            refresh(plan);
+            src.toIndex().save(SRC_INDEX_PATH);
+            dst.toIndex().save(dstIndexPath);
+        } catch (IOException e) {
+            // The next rescan puts right whatever was left undone
+            System.out.format("Error syncing changes: %s\n", e);
+        }
+        return carried;
+    }
+
+    // Whether the file has stayed the same for the debounce time, so isn't still being written
+    private boolean isSettled(Path path, BasicFileAttributes attrs, long now) {
+        long modified = attrs.lastModifiedTime().toMillis();
+        Sighting last = unsettled.get(path);
+        if (last == null && now - modified >= debounceMillis
+                || last != null && last.size == attrs.size() && last.lastModified == modified && now - last.time >= debounceMillis) {
+            unsettled.remove(path);
+            return true;
+        }
+        if (last == null || last.size != attrs.size() || last.lastModified != modified) {
+            unsettled.put(path, new Sighting(attrs.size(), modified, now));
+        }
+        return false;
+    }
+
+    /**
+     * The size and modification time of a file, and when they were seen.
+     */
+    private static class Sighting {
+        final long size;
+        final long lastModified;
+        final long time;
+
+        Sighting(long size, long lastModified, long time) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.time = time;
+        }
+    }
+
+    // Brings the destination entries up to date with what the plan did
+    private void refresh(SyncPlan plan) {
+        for (SyncPlan.Action action : plan.actions()) {
+            switch (action.type) {
+            case RENAME:
+                dst.remove(action.srcPath);
+                // Fall through
+            case COPY:
+            case UPDATE:
+                try {
+                    Path path = action.dst();
+                    TrackEntry entry = MusicFileSync.readEntry(MusicFileSync.Side.DESTINATION, path,
+                            Files.readAttributes(path, BasicFileAttributes.class));
+                    if (entry != null) {
+                        dst.put(entry);
+                    }
+                } catch (IOException e) {
+                    // Not written
+                }
+                break;
+            case DELETE:
+                if (! Files.exists(action.dst())) {
+                    dst.remove(action.dstPath);
+                }
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    /**
+     * The entries of one side, by path and by key. When several files have the same key the
+     * last one put is used.
+     */
+    private static class Tree {
+        final Map<String, TrackEntry> byPath = new LinkedHashMap<String, TrackEntry>();
+        final Map<String, TrackEntry> byKey = new HashMap<String, TrackEntry>();
+        // The paths with each key, in the order they were put, and all the paths in order, for
+        // finding what is under a directory
+        private final Map<String, LinkedHashSet<String>> pathsByKey = new HashMap<String, LinkedHashSet<String>>();
+        private final NavigableSet<String> sortedPaths = new TreeSet<String>();
+
+        Tree(Collection<TrackEntry> entries) {
+            for (TrackEntry entry : entries) {
+                put(entry);
+            }
+        }
+
+        void put(TrackEntry entry) {
+            remove(entry.path);
+            byPath.put(entry.path, entry);
+            sortedPaths.add(entry.path);
+            if (entry.key != null) {
+                byKey.put(entry.key, entry);
+                pathsByKey.computeIfAbsent(entry.key, key -> new LinkedHashSet<String>()).add(entry.path);
+            }
+        }
+
+        TrackEntry remove(String path) {
+            TrackEntry old = byPath.remove(path);
+            if (old == null) {
+                return null;
+            }
+            sortedPaths.remove(path);
+            if (old.key != null) {
+                LinkedHashSet<String> paths = pathsByKey.get(old.key);
+                paths.remove(path);
+                if (paths.isEmpty()) {
+                    pathsByKey.remove(old.key);
+                }
+                if (byKey.get(old.key) == old) {
+                    byKey.remove(old.key);
+                    // The last other file put with the key takes its place
+                    String last = null;
+                    for (String other : paths) {
+                        last = other;
+                    }
+                    if (last != null) {
+                        byKey.put(old.key, byPath.get(last));
+                    }
+                }
+            }
+            return old;
+        }
+
+        // Removes the entry for the path, or for every file under it if it was a directory
+        List<TrackEntry> removeUnder(Path path) {
+            String prefix = path.toString() + path.getFileSystem().getSeparator();
+            List<String> paths = new ArrayList<String>();
+            if (byPath.containsKey(path.toString())) {
+                paths.add(path.toString());
+            }
+            for (String entryPath : sortedPaths.tailSet(prefix)) {
+                if (! entryPath.startsWith(prefix)) {
+                    break;
+                }
+                paths.add(entryPath);
+            }
+            List<TrackEntry> removed = new ArrayList<TrackEntry>();
+            for (String entryPath : paths) {
+                removed.add(remove(entryPath));
+            }
+            return removed;
+        }
+
+        TrackIndex toIndex() {
+            TrackIndex index = new TrackIndex();
+            for (TrackEntry entry : byPath.values()) {
+                index.add(entry);
+            }
+            return index;
+        }
+    }
+}
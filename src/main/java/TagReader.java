@@ -0,0 +1,625 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.jaudiotagger.tag.FieldKey;
+
+/**
+ * Reads the fields the index needs, and the length and bitrate of the track, from the headers
+ * of a file alone: the ID3v2 tag at the start of an mp3 and the first audio frame after it, or
+ * the moov/udta/meta/ilst atoms of an m4a with mvhd and the sample description of its sound
+ * track. Only the headers of the frames and atoms on the way are read, through a small window
+ * onto the file, so artwork, sample tables and audio are skipped over rather than parsed as
+ * jaudiotagger does.
+ *
+ * Anything out of the ordinary (no ID3v2.3 or 2.4 tag, unsynchronisation, compressed or
+ * encrypted frames, a genre given by number, no MPEG layer III frame near the tag, no ilst) is
+ * left to jaudiotagger, as are values that it might read differently.
+ */
+class TagReader {
+    private static final int WINDOW_SIZE = 8192;
+    // Longest frame or atom read for a field
+    private static final int MAX_FIELD_SIZE = 65536;
+    // How far past the tag the first audio frame is looked for
+    private static final int MAX_FRAME_SEARCH = 4096;
+
+    private static final int[] MPEG1_BITRATES = {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320};
+    private static final int[] MPEG2_BITRATES = {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160};
+    private static final int[] MPEG1_SAMPLE_RATES = {44100, 48000, 32000};
+
+    /**
+     * What was read. Fields the file doesn't have are empty, as jaudiotagger gives them.
+     */
+    static class Tags {
+        private final Map<FieldKey, String> fields = new EnumMap<FieldKey, String>(FieldKey.class);
+        // In seconds, and kbit/s
+        int duration;
+        int bitrate;
+
+        String get(FieldKey key) {
+            String value = fields.get(key);
+            return value == null ? "" : value;
+        }
+
+        // The first value found for a field is the one kept
+        private void put(FieldKey key, String value) {
+            fields.putIfAbsent(key, value);
+        }
+    }
+
+    // null if the file has to be left to jaudiotagger
+    static Tags read(Path path) throws IOException {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        boolean mp3 = name.endsWith(".mp3");
+        if (! mp3 && ! name.endsWith(".m4a")) {
+            return null;
+        }
+        try (Window file = new Window(FileChannel.open(path, StandardOpenOption.READ))) {
+            return mp3 ? readMp3(file) : readMp4(file);
+        }
+    }
+
+    private static Tags readMp3(Window file) throws IOException {
+        byte[] h = file.get(0, 10);
+        // Unsynchronisation, extended header or footer
+        if (h == null || h[0] != 'I' || h[1] != 'D' || h[2] != '3' || (h[3] != 3 && h[3] != 4) || (h[5] & 0xD0) != 0) {
+            return null;
+        }
+        int version = h[3];
+        int size = TagWriter.syncsafe(h, 6);
+        if (size < 0) {
+            return null;
+        }
+        long end = 10L + size;
+
+        Tags tags = new Tags();
+        long position = 10;
+        while (position + 10 <= end) {
+            byte[] frame = file.get(position, 10);
+            if (frame == null) {
+                return null;
+            }
+            // Padding
+            if (frame[0] == 0) {
+                break;
+            }
+            for (int i = 0; i < 4; i++) {
+                if (! (frame[i] >= 'A' && frame[i] <= 'Z' || frame[i] >= '0' && frame[i] <= '9')) {
+                    return null;
+                }
+            }
+            String id = new String(frame, 0, 4, StandardCharsets.ISO_8859_1);
+            int frameSize = version == 4 ? TagWriter.syncsafe(frame, 4) : ByteBuffer.wrap(frame, 4, 4).getInt();
+            if (frameSize < 0 || position + 10 + frameSize > end) {
+                return null;
+            }
+            if (isSyncFrame(id)) {
+                if ((frame[9] & (version == 4 ? 0x4F : 0xE0)) != 0 || frameSize > MAX_FIELD_SIZE) {
+                    return null;
+                }
+                byte[] data = file.get(position + 10, frameSize);
+                if (data == null || ! putFrame(tags, id, data)) {
+                    return null;
+                }
+            }
+            position += 10 + frameSize;
+        }
+        return readMpegFrame(file, end, tags) ? tags : null;
+    }
+
+    private static boolean isSyncFrame(String id) {
+        switch (id) {
+        case "TALB":
+        case "TPE2":
+        case "TPE1":
+        case "COMM":
+        case "TCOM":
+        case "TPOS":
+        case "TCON":
+        case "TIT2":
+        case "TRCK":
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    // false if the frame holds something this doesn't read the way jaudiotagger does
+    private static boolean putFrame(Tags tags, String id, byte[] data) {
+        if (data.length == 0) {
+            return true;
+        }
+        if (id.equals("COMM")) {
+            return putComment(tags, data);
+        }
+        String text = text(data[0], data, 1, data.length);
+        if (text == null) {
+            return false;
+        }
+        String[] parts;
+        switch (id) {
+        case "TALB":
+            tags.put(FieldKey.ALBUM, firstValue(text));
+            break;
+        case "TPE2":
+            tags.put(FieldKey.ALBUM_ARTIST, firstValue(text));
+            break;
+        case "TPE1":
+            tags.put(FieldKey.ARTIST, firstValue(text));
+            break;
+        case "TCOM":
+            tags.put(FieldKey.COMPOSER, firstValue(text));
+            break;
+        case "TIT2":
+            tags.put(FieldKey.TITLE, firstValue(text));
+            break;
+        case "TCON":
+            // Genres given as ID3v1 numbers are translated by jaudiotagger
+            String genre = firstValue(text);
+            if (genre.startsWith("(") || ! genre.isEmpty() && number(genre) != null) {
+                return false;
+            }
+            tags.put(FieldKey.GENRE, genre);
+            break;
+        case "TRCK":
+            parts = firstValue(text).split("/", 2);
+            String track = number(parts[0]);
+            if (track == null) {
+                return false;
+            }
+            tags.put(FieldKey.TRACK, track);
+            break;
+        case "TPOS":
+            parts = firstValue(text).split("/", 2);
+            String disc = number(parts[0]);
+            String total = parts.length > 1 ? number(parts[1]) : "";
+            if (disc == null || total == null) {
+                return false;
+            }
+            tags.put(FieldKey.DISC_NO, disc);
+            tags.put(FieldKey.DISC_TOTAL, total);
+            break;
+        default:
+            break;
+        }
+        return true;
+    }
+
+    // Language, then the description and the comment; the comment without a description is the
+    // one TagWriter writes
+    private static boolean putComment(Tags tags, byte[] data) {
+        int width = data[0] == 1 || data[0] == 2 ? 2 : 1;
+        int end = 4;
+        while (end + width <= data.length && (data[end] != 0 || data[end + width - 1] != 0)) {
+            end += width;
+        }
+        if (end + width > data.length) {
+            return false;
+        }
+        String description = text(data[0], data, 4, end);
+        String comment = text(data[0], data, end + width, data.length);
+        if (description == null || comment == null) {
+            return false;
+        }
+        if (stripBom(description).isEmpty()) {
+            tags.put(FieldKey.COMMENT, firstValue(stripBom(comment)));
+        }
+        return true;
+    }
+
+    // The text of the bytes in the encoding, as ID3v2 numbers them; null for an unknown encoding
+    private static String text(byte encoding, byte[] data, int start, int end) {
+        Charset charset;
+        switch (encoding) {
+        case 0:
+            charset = StandardCharsets.ISO_8859_1;
+            break;
+        case 1:
+            // Without a byte order mark jaudiotagger's guess might not be ours
+            if (end - start >= 2 && ! (data[start] == (byte) 0xFF && data[start + 1] == (byte) 0xFE
+                    || data[start] == (byte) 0xFE && data[start + 1] == (byte) 0xFF)) {
+                return null;
+            }
+            charset = StandardCharsets.UTF_16;
+            break;
+        case 2:
+            charset = StandardCharsets.UTF_16BE;
+            break;
+        case 3:
+            charset = StandardCharsets.UTF_8;
+            break;
+        default:
+            return null;
+        }
+        return new String(data, start, end - start, charset);
+    }
+
+    // Up to the first null, which separates the values of a frame in ID3v2.4
+    private static String firstValue(String text) {
+        int end = text.indexOf('\0');
+        return end < 0 ? text : text.substring(0, end);
+    }
+
+    private static String stripBom(String text) {
+        return text.startsWith("\uFEFF") ? text.substring(1) : text;
+    }
+
+    // The number without leading zeros, as jaudiotagger gives it, "" for none, or null if it isn't one
+    private static String number(String text) {
+        text = text.trim();
+        if (text.isEmpty()) {
+            return "";
+        }
+        if (text.length() > 9) {
+            return null;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') {
+                return null;
+            }
+        }
+        return String.valueOf(Integer.parseInt(text));
+    }
+
+    // Works out the length and bitrate from the first audio frame after the tag, and the Xing or
+    // VBRI header in it if it has one; false if there is no layer III frame there
+    private static boolean readMpegFrame(Window file, long start, Tags tags) throws IOException {
+        byte[] b = file.get(start, (int) Math.min(MAX_FRAME_SEARCH + 4, file.size - start));
+        if (b == null) {
+            return false;
+        }
+        for (int i = 0; i + 4 <= b.length; i++) {
+            if ((b[i] & 0xFF) != 0xFF || (b[i + 1] & 0xE0) != 0xE0) {
+                continue;
+            }
+            int versionBits = (b[i + 1] >> 3) & 3;
+            int layerBits = (b[i + 1] >> 1) & 3;
+            int bitrateIndex = (b[i + 2] >> 4) & 0xF;
+            int rateIndex = (b[i + 2] >> 2) & 3;
+            // Reserved values, free format, and layers other than III
+            if (versionBits == 1 || layerBits != 1 || bitrateIndex == 0 || bitrateIndex == 15 || rateIndex == 3) {
+                continue;
+            }
+            boolean mpeg1 = versionBits == 3;
+            int bitrate = (mpeg1 ? MPEG1_BITRATES : MPEG2_BITRATES)[bitrateIndex];
+            int sampleRate = MPEG1_SAMPLE_RATES[rateIndex] >> (mpeg1 ? 0 : versionBits == 2 ? 1 : 2);
+            int samples = mpeg1 ? 1152 : 576;
+            int frameLength = samples / 8 * bitrate * 1000 / sampleRate + ((b[i + 2] >> 1) & 1);
+            // A false sync in junk before the audio is rarely followed by another frame
+            int next = i + frameLength;
+            if (next + 2 <= b.length && ((b[next] & 0xFF) != 0xFF || (b[next + 1] & 0xE0) != 0xE0)) {
+                continue;
+            }
+
+            long position = start + i;
+            long audioBytes = file.size - position;
+            long frames = 0;
+            boolean vbr = false;
+            boolean mono = ((b[i + 3] >> 6) & 3) == 3;
+            int sideInfo = mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17);
+            byte[] xing = file.get(position + 4 + sideInfo, 16);
+            byte[] vbri = file.get(position + 36, 18);
+            if (xing != null && (startsWith(xing, "Xing") || startsWith(xing, "Info"))) {
+                ByteBuffer header = ByteBuffer.wrap(xing);
+                int flags = header.getInt(4);
+                int offset = 8;
+                if ((flags & 1) != 0) {
+                    frames = header.getInt(offset) & 0xFFFFFFFFL;
+                    offset += 4;
+                }
+                if ((flags & 2) != 0 && header.getInt(offset) > 0) {
+                    audioBytes = header.getInt(offset);
+                }
+                vbr = startsWith(xing, "Xing");
+            } else if (vbri != null && startsWith(vbri, "VBRI")) {
+                ByteBuffer header = ByteBuffer.wrap(vbri);
+                audioBytes = header.getInt(10) & 0xFFFFFFFFL;
+                frames = header.getInt(14) & 0xFFFFFFFFL;
+                vbr = true;
+            }
+
+            double seconds = frames > 0 ? (double) frames * samples / sampleRate : audioBytes * 8.0 / (bitrate * 1000);
+            tags.duration = (int) Math.round(seconds);
+            tags.bitrate = vbr && seconds > 0 ? (int) Math.round(audioBytes * 8 / seconds / 1000) : bitrate;
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean startsWith(byte[] b, String s) {
+        return new String(b, 0, s.length(), StandardCharsets.ISO_8859_1).equals(s);
+    }
+
+    private static Tags readMp4(Window file) throws IOException {
+        Atom moov = child(file, 0, file.size, "moov");
+        Atom meta = find(file, moov, "udta", "meta");
+        if (meta == null) {
+            return null;
+        }
+        // meta is a full atom, except in files that follow QuickTime rather than MP4
+        byte[] peek = file.get(meta.start + 4, 4);
+        long metaStart = peek != null && startsWith(peek, "hdlr") ? meta.start : meta.start + 4;
+        Atom ilst = child(file, metaStart, meta.end, "ilst");
+        if (ilst == null) {
+            return null;
+        }
+
+        Tags tags = new Tags();
+        boolean numericGenre = false;
+        for (Atom item = atom(file, ilst.start, ilst.end); item != null; item = atom(file, item.end, ilst.end)) {
+            FieldKey key = itemKey(item.type);
+            if (key == null && ! item.type.equals("gnre")) {
+                continue;
+            }
+            Atom data = child(file, item.start, item.end, "data");
+            if (data == null || data.end - data.start < 8 || data.end - data.start > MAX_FIELD_SIZE) {
+                return null;
+            }
+            byte[] value = file.get(data.start, (int) (data.end - data.start));
+            if (value == null) {
+                return null;
+            }
+            int type = ByteBuffer.wrap(value).getInt(0) & 0xFFFFFF;
+            ByteBuffer number = ByteBuffer.wrap(value, 8, value.length - 8);
+            if (item.type.equals("gnre")) {
+                numericGenre = true;
+            } else if (item.type.equals("trkn")) {
+                if (number.remaining() < 4) {
+                    return null;
+                }
+                tags.put(FieldKey.TRACK, String.valueOf(number.getShort(10) & 0xFFFF));
+            } else if (item.type.equals("disk")) {
+                if (number.remaining() < 6) {
+                    return null;
+                }
+                tags.put(FieldKey.DISC_NO, String.valueOf(number.getShort(10) & 0xFFFF));
+                tags.put(FieldKey.DISC_TOTAL, String.valueOf(number.getShort(12) & 0xFFFF));
+            } else if (type == 1 || type == 2) {
+                tags.put(key, new String(value, 8, value.length - 8, type == 1 ? StandardCharsets.UTF_8 : StandardCharsets.UTF_16BE));
+            } else {
+                return null;
+            }
+        }
+        // jaudiotagger names a genre given by number
+        if (numericGenre && ! tags.fields.containsKey(FieldKey.GENRE)) {
+            return null;
+        }
+
+        Atom mvhd = child(file, moov.start, moov.end, "mvhd");
+        byte[] header = mvhd == null ? null : file.get(mvhd.start, 32);
+        if (header == null) {
+            return null;
+        }
+        ByteBuffer h = ByteBuffer.wrap(header);
+        long timescale = (h.get(0) == 1 ? h.getInt(20) : h.getInt(12)) & 0xFFFFFFFFL;
+        long length = h.get(0) == 1 ? h.getLong(24) : h.getInt(16) & 0xFFFFFFFFL;
+        if (timescale == 0) {
+            return null;
+        }
+        double seconds = (double) length / timescale;
+        tags.duration = (int) Math.round(seconds);
+        tags.bitrate = soundBitrate(file, moov);
+        if (tags.bitrate == 0 && seconds > 0) {
+            tags.bitrate = (int) Math.round(file.size * 8 / seconds / 1000);
+        }
+        return tags;
+    }
+
+    private static FieldKey itemKey(String type) {
+        switch (type) {
+        case "\u00a9alb":
+            return FieldKey.ALBUM;
+        case "aART":
+            return FieldKey.ALBUM_ARTIST;
+        case "\u00a9ART":
+            return FieldKey.ARTIST;
+        case "\u00a9cmt":
+            return FieldKey.COMMENT;
+        case "\u00a9wrt":
+            return FieldKey.COMPOSER;
+        case "disk":
+            return FieldKey.DISC_NO;
+        case "\u00a9gen":
+            return FieldKey.GENRE;
+        case "\u00a9nam":
+            return FieldKey.TITLE;
+        case "trkn":
+            return FieldKey.TRACK;
+        default:
+            return null;
+        }
+    }
+
+    // The average bitrate the AAC or ALAC sample description of the first sound track gives, or 0
+    private static int soundBitrate(Window file, Atom moov) throws IOException {
+        for (Atom trak = child(file, moov.start, moov.end, "trak"); trak != null; trak = child(file, trak.end, moov.end, "trak")) {
+            Atom stsd = find(file, trak, "mdia", "minf", "stbl", "stsd");
+            // Version, flags and the number of entries come before the first entry
+            Atom entry = stsd == null ? null : atom(file, stsd.start + 8, stsd.end);
+            if (entry == null || ! entry.type.equals("mp4a") && ! entry.type.equals("alac")) {
+                continue;
+            }
+            byte[] version = file.get(entry.start + 8, 2);
+            if (version == null) {
+                return 0;
+            }
+            // Sound descriptions of version 1 and 2 have more fields before the atoms in them
+            long start = entry.start + 28 + (version[1] == 1 ? 16 : version[1] == 2 ? 36 : 0);
+            if (entry.type.equals("alac")) {
+                Atom alac = child(file, start, entry.end, "alac");
+                byte[] config = alac == null ? null : file.get(alac.start, 24);
+                return config == null ? 0 : ByteBuffer.wrap(config).getInt(20) / 1000;
+            }
+            Atom esds = child(file, start, entry.end, "esds");
+            if (esds == null || esds.end - esds.start > MAX_FIELD_SIZE) {
+                return 0;
+            }
+            byte[] descriptors = file.get(esds.start, (int) (esds.end - esds.start));
+            return descriptors == null ? 0 : avgBitrate(ByteBuffer.wrap(descriptors)) / 1000;
+        }
+        return 0;
+    }
+
+    // From the decoder configuration in the elementary stream descriptor, after version and flags
+    private static int avgBitrate(ByteBuffer esds) {
+        try {
+            esds.position(4);
+            if (esds.get() != 3) {
+                return 0;
+            }
+            descriptorLength(esds);
+            esds.getShort();
+            int flags = esds.get();
+            if ((flags & 0x80) != 0) {
+                esds.getShort();
+            }
+            if ((flags & 0x40) != 0) {
+                esds.position(esds.position() + (esds.get() & 0xFF));
+            }
+            if ((flags & 0x20) != 0) {
+                esds.getShort();
+            }
+            if (esds.get() != 4) {
+                return 0;
+            }
+            descriptorLength(esds);
+            // Object and stream type, buffer size and maximum bitrate
+            esds.position(esds.position() + 9);
+            return esds.getInt();
+        } catch (RuntimeException e) {
+            // Cut short
+            return 0;
+        }
+    }
+
+    private static int descriptorLength(ByteBuffer esds) {
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = esds.get();
+            length = (length << 7) | (b & 0x7F);
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * An MP4 atom: its type and where its content starts and it ends.
+     */
+    private static class Atom {
+        final String type;
+        final long start;
+        final long end;
+
+        Atom(String type, long start, long end) {
+            this.type = type;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    // The atom at the position, or null if there isn't a whole one before the end
+    private static Atom atom(Window file, long position, long end) throws IOException {
+        byte[] header = position + 8 <= end ? file.get(position, 8) : null;
+        if (header == null) {
+            return null;
+        }
+        long size = ByteBuffer.wrap(header).getInt(0) & 0xFFFFFFFFL;
+        long start = position + 8;
+        if (size == 1) {
+            byte[] large = file.get(start, 8);
+            if (large == null) {
+                return null;
+            }
+            size = ByteBuffer.wrap(large).getLong();
+            start += 8;
+        } else if (size == 0) {
+            // Up to the end of the file
+            size = end - position;
+        }
+        if (size < start - position || position + size > end) {
+            return null;
+        }
+        return new Atom(new String(header, 4, 4, StandardCharsets.ISO_8859_1), start, position + size);
+    }
+
+    // The first atom of the type from the position to the end
+    private static Atom child(Window file, long position, long end, String type) throws IOException {
+        for (Atom atom = atom(file, position, end); atom != null; atom = atom(file, atom.end, end)) {
+            if (atom.type.equals(type)) {
+                return atom;
+            }
+        }
+        return null;
+    }
+
+    // The atom down the path of types from the parent, or null if there isn't one or the parent is null
+    private static Atom find(Window file, Atom parent, String... path) throws IOException {
+        Atom atom = parent;
+        for (String type : path) {
+            if (atom == null) {
+                return null;
+            }
+            atom = child(file, atom.start, atom.end, type);
+        }
+        return atom;
+    }
+
+    /**
+     * A window onto the file, moved when a read falls outside it, so that the headers close
+     * together take one read between them.
+     */
+    private static class Window implements AutoCloseable {
+        private final FileChannel channel;
+        final long size;
+        private final ByteBuffer buffer = ByteBuffer.allocate(WINDOW_SIZE);
+        private long start = -1;
+
+        Window(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        // The bytes at the position, or null if the file ends before them
+        byte[] get(long position, int length) throws IOException {
+            if (position < 0 || length < 0 || position + length > size) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            if (length > WINDOW_SIZE) {
+                readFully(ByteBuffer.wrap(bytes), position);
+                return bytes;
+            }
+            if (start < 0 || position < start || position + length > start + buffer.limit()) {
+                buffer.clear();
+                start = position;
+                readFully(buffer, position);
+                buffer.flip();
+            }
+            System.arraycopy(buffer.array(), (int) (position - start), bytes, 0, length);
+            return bytes;
+        }
+
+        private void readFully(ByteBuffer b, long position) throws IOException {
+            long offset = position - b.position();
+            while (b.hasRemaining()) {
+                if (channel.read(b, offset + b.position()) < 0) {
+                    break;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
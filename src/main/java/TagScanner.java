@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scans a directory tree in two stages: the calling thread walks the tree, reusing the entry from
+ * the previous index for every audio file whose size and modification time are unchanged, and
+ * hands the remaining files to a bounded pool of workers that parse the tags. With a single
+ * thread the tags are parsed on the walking thread.
+ *
+ * Every file is numbered in walk order, and the keys are put in the map in that order once the
+ * scan is done, so the resulting map and the duplicates reported, pair by pair and in order, are
+ * the same as for a sequential walk.
+ *
+ * The files the walk filter leaves out keep the entries they had in the previous index, so that
+ * a filtered scan doesn't make the next one read them again. These entries are added to the
+ * index after the others but not to the map.
+ */
+class TagScanner {
+    private final MusicFileSync.Side side;
+    private final int threads;
+    private final TrackIndex previous;
+    private final SyncPlan plan;
+    private final WalkFilter filter;
+    private final SyncMetrics metrics = SyncMetrics.INSTANCE;
+    // What the filter left out of the scan
+    private final List<Path> leftOutFiles = new ArrayList<Path>();
+    private final List<Path> prunedDirs = new ArrayList<Path>();
+    private final List<TrackEntry> carried = new ArrayList<TrackEntry>();
+
+    // Duplicates found are recorded in the plan
+    TagScanner(MusicFileSync.Side side, int threads, TrackIndex previous, SyncPlan plan) {
+        this(side, threads, previous, plan, WalkFilter.ALL);
+    }
+
+    // Only the files the filter lets through are indexed
+    TagScanner(MusicFileSync.Side side, int threads, TrackIndex previous, SyncPlan plan, WalkFilter filter) {
+        this.side = side;
+        this.threads = threads;
+        this.previous = previous;
+        this.plan = plan;
+        this.filter = filter;
+    }
+
+    private static class Hit {
+        final long seq;
+        final TrackEntry entry;
+
+        Hit(long seq, TrackEntry entry) {
+            this.seq = seq;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * Scans the tree, adding an entry for every audio file to the index and the key of every
+     * file to be synced to the map. If the map is null only the index is filled in.
+     */
+    void scan(final Path dirPath, final Map<String, TrackEntry> map, TrackIndex index) throws IOException {
+        final Queue<Hit> scanned = new ConcurrentLinkedQueue<Hit>();
+        final AtomicInteger tagsRead = new AtomicInteger();
+
+        // The queue is bounded so the walk can't run arbitrarily far ahead of the parsers;
+        // when it is full the walking thread parses the file itself.
+        final ThreadPoolExecutor executor = threads <= 1 ? null :
+            new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(threads * 64), new ThreadPoolExecutor.CallerRunsPolicy());
+
+        try {
+            Files.walkFileTree(dirPath, new SimpleFileVisitor<Path>() {
+                private long seq = 0;
+
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    if (filter.skipDirectory(dirPath, dir)) {
+                        metrics.dirsPruned.incrementAndGet();
+                        prunedDirs.add(dir);
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(final Path path, final BasicFileAttributes attrs) {
+                    if (! filter.accepts(dirPath, path, attrs)) {
+                        if (MusicFileSync.isAudioFile(path)) {
+                            metrics.filesFiltered.incrementAndGet();
+                            leftOutFiles.add(path);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                    final long fileSeq = seq++;
+                    metrics.filesWalked.incrementAndGet();
+                    TrackEntry cached = previous.get(path, attrs);
+                    if (cached != null) {
+                        metrics.indexHits.incrementAndGet();
+                        record(new Hit(fileSeq, cached));
+                        return FileVisitResult.CONTINUE;
+                    }
+                    Runnable parse = () -> {
+                        long start = System.nanoTime();
+                        TrackEntry entry = MusicFileSync.readEntry(side, path, attrs);
+                        metrics.tagRead.since(start);
+                        tagsRead.incrementAndGet();
+                        if (entry != null) {
+                            metrics.tagsParsed.incrementAndGet();
+                            record(new Hit(fileSeq, entry));
+                        } else {
+                            metrics.parseErrors.incrementAndGet();
+                        }
+                    };
+                    if (executor == null) {
+                        parse.run();
+                    } else {
+                        executor.execute(parse);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+
+                private void record(Hit hit) {
+                    scanned.add(hit);
+                }
+            });
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+                try {
+                    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    executor.shutdownNow();
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while scanning " + dirPath, e);
+                }
+            }
+        }
+
+        List<Hit> all = new ArrayList<Hit>(scanned);
+        Collections.sort(all, BY_SEQ);
+        for (Hit hit : all) {
+            index.add(hit.entry);
+        }
+        System.out.format("Indexed %d files, read tags of %d\n", all.size(), tagsRead.get());
+        if (! leftOutFiles.isEmpty() || ! prunedDirs.isEmpty()) {
+            carryLeftOut(dirPath, index);
+            System.out.format("Left out %d files and %d directories, kept %d entries for them\n",
+                    leftOutFiles.size(), prunedDirs.size(), carried.size());
+        }
+
+        // Put the keys in walk order so that each duplicate is reported against the file that
+        // held the key before it, from this tree or an earlier one, as the sequential walk did
+        if (map != null) {
+            for (Hit hit : all) {
+                if (hit.entry.key != null) {
+                    MusicFileSync.putEntry(side, map, hit.entry, plan);
+                }
+            }
+        }
+    }
+
+    // Adds the previous entries of the files left out, and of everything under the directories left out
+    private void carryLeftOut(Path dirPath, TrackIndex index) {
+        Set<String> files = new HashSet<String>();
+        for (Path path : leftOutFiles) {
+            files.add(path.toString());
+        }
+        List<String> dirs = new ArrayList<String>();
+        for (Path dir : prunedDirs) {
+            dirs.add(dir.toString() + dirPath.getFileSystem().getSeparator());
+        }
+        for (TrackEntry entry : previous.entries()) {
+            boolean leftOut = files.contains(entry.path);
+            for (int i = 0; ! leftOut && i < dirs.size(); i++) {
+                leftOut = entry.path.startsWith(dirs.get(i));
+            }
+            if (leftOut) {
+                index.add(entry);
+                carried.add(entry);
+            }
+        }
+    }
+
+    // Audio files the filter left out
+    List<Path> leftOutFiles() {
+        return leftOutFiles;
+    }
+
+    List<Path> prunedDirs() {
+        return prunedDirs;
+    }
+
+    // The entries kept from the previous index for what was left out
+    List<TrackEntry> carried() {
+        return carried;
+    }
+
+    private static final Comparator<Hit> BY_SEQ = (a, b) -> Long.compare(a.seq, b.seq);
+}
@@ -0,0 +1,616 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jaudiotagger.audio.AudioFile;
+import org.jaudiotagger.audio.AudioFileIO;
+import org.jaudiotagger.audio.exceptions.CannotReadException;
+import org.jaudiotagger.audio.exceptions.CannotWriteException;
+import org.jaudiotagger.audio.exceptions.InvalidAudioFrameException;
+import org.jaudiotagger.audio.exceptions.ReadOnlyFileException;
+import org.jaudiotagger.tag.FieldDataInvalidException;
+import org.jaudiotagger.tag.FieldKey;
+import org.jaudiotagger.tag.Tag;
+import org.jaudiotagger.tag.TagException;
+
+/**
+ * Writes changed fields to the tag of a file. jaudiotagger's commit writes the whole tag again,
+ * and the whole file when the tag has grown, so instead the ID3v2.3 or 2.4 tag at the start of
+ * an mp3 is edited here: the frames of the changed fields are replaced and, if the frames still
+ * fit in the space the tag takes up, the tag is written over the old one with a positioned
+ * write and the audio is left alone. Otherwise the file is rewritten once, with padding after
+ * the frames so that the next edits fit.
+ *
+ * The ilst atom of an m4a is edited the same way when it is followed by a free atom inside meta,
+ * as iTunes leaves it: the items of the changed fields are replaced and, if the ilst still fits
+ * in the space it and the free atom take up, both are written over the old ones. Nothing moves,
+ * so the chunk offsets stay right.
+ *
+ * Other files, tags this doesn't understand (unsynchronised, with an extended header, or with
+ * compressed or encrypted frames to change), and m4a tags without the room, are written by
+ * jaudiotagger.
+ */
+class TagWriter {
+    private static final int HEADER_SIZE = 10;
+    // Largest size a syncsafe integer holds
+    private static final int MAX_TAG_SIZE = (1 << 28) - 1;
+    // Larger moov atoms, with a long sample table, are left to jaudiotagger
+    private static final int MAX_MOOV_SIZE = 16 << 20;
+
+    private final int padding;
+
+    // padding is the number of bytes left free after the frames when a file is rewritten
+    TagWriter(int padding) {
+        this.padding = padding;
+    }
+
+    // Writes the new values of the changes, returning the number of bytes written
+    long write(Path path, List<SyncPlan.FieldChange> changes) throws IOException, CannotReadException, CannotWriteException,
+            TagException, ReadOnlyFileException, InvalidAudioFrameException, FieldDataInvalidException {
+        return write(path, null, changes);
+    }
+
+    // As above, for a file already read by jaudiotagger, whose tag is changed too if it ends up writing it
+    long write(Path path, AudioFile file, List<SyncPlan.FieldChange> changes) throws IOException, CannotReadException,
+            CannotWriteException, TagException, ReadOnlyFileException, InvalidAudioFrameException, FieldDataInvalidException {
+        SyncMetrics metrics = SyncMetrics.INSTANCE;
+        String name = path.getFileName().toString().toLowerCase();
+        long written = name.endsWith(".mp3") ? writeId3v2(path, changes) : name.endsWith(".m4a") ? writeIlst(path, changes) : -1;
+        if (written >= 0) {
+            return written;
+        }
+
+        if (file == null) {
+            file = AudioFileIO.read(path.toFile());
+        }
+        Tag tag = file.getTag();
+        for (SyncPlan.FieldChange change : changes) {
+            tag.setField(change.field, change.newValue);
+        }
+        file.commit();
+        metrics.tagRewrites.incrementAndGet();
+        return Files.size(path);
+    }
+
+    // Returns -1 if the tag has to be left to jaudiotagger
+    private long writeId3v2(Path path, List<SyncPlan.FieldChange> changes) throws IOException {
+        SyncMetrics metrics = SyncMetrics.INSTANCE;
+        // Moved over the file once the file is closed, which Windows insists on
+        Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            byte[] h = header.array();
+            if (header.hasRemaining() || h[0] != 'I' || h[1] != 'D' || h[2] != '3' || (h[3] != 3 && h[3] != 4)) {
+                return -1;
+            }
+            // Unsynchronisation, extended header or footer
+            if ((h[5] & 0xD0) != 0) {
+                return -1;
+            }
+            int size = syncsafe(h, 6);
+            if (size < 0 || HEADER_SIZE + size > channel.size()) {
+                return -1;
+            }
+            ByteBuffer body = ByteBuffer.allocate(size);
+            readFully(channel, body, HEADER_SIZE);
+
+            List<Frame> frames = Frame.parse(body.array(), h[3]);
+            if (frames == null) {
+                return -1;
+            }
+            for (SyncPlan.FieldChange change : changes) {
+                if (! apply(frames, change, h[3])) {
+                    return -1;
+                }
+            }
+            int length = 0;
+            for (Frame frame : frames) {
+                length += frame.data.length;
+            }
+
+            if (length <= size) {
+                ByteBuffer tag = ByteBuffer.allocate(HEADER_SIZE + size);
+                tag.put(h);
+                for (Frame frame : frames) {
+                    tag.put(frame.data);
+                }
+                tag.rewind();
+                while (tag.hasRemaining()) {
+                    channel.write(tag, tag.position());
+                }
+                metrics.inPlaceWrites.incrementAndGet();
+                return tag.capacity();
+            }
+
+            int newSize = length + padding;
+            if (newSize > MAX_TAG_SIZE) {
+                return -1;
+            }
+            try (FileChannel out = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                ByteBuffer tag = ByteBuffer.allocate(HEADER_SIZE + newSize);
+                tag.put(h, 0, 6);
+                tag.put(syncsafe(newSize));
+                for (Frame frame : frames) {
+                    tag.put(frame.data);
+                }
+                tag.rewind();
+                while (tag.hasRemaining()) {
+                    out.write(tag);
+                }
+                long position = HEADER_SIZE + size;
+                while (position < channel.size()) {
+                    position += channel.transferTo(position, channel.size() - position, out);
+                }
+                out.force(false);
+            } catch (IOException e) {
+                Files.deleteIfExists(tmpPath);
+                throw e;
+            }
+        }
+        try {
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        metrics.tagRewrites.incrementAndGet();
+        return Files.size(path);
+    }
+
+    // Returns -1 if the tag has to be left to jaudiotagger
+    private long writeIlst(Path path, List<SyncPlan.FieldChange> changes) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long moovStart = -1;
+            long moovSize = 0;
+            ByteBuffer header = ByteBuffer.allocate(16);
+            for (long position = 0; position + 8 <= channel.size(); position += moovSize) {
+                header.clear();
+                readFully(channel, header, position);
+                moovSize = header.getInt(0) & 0xFFFFFFFFL;
+                if (moovSize == 1) {
+                    if (header.hasRemaining()) {
+                        return -1;
+                    }
+                    moovSize = header.getLong(8);
+                } else if (moovSize == 0) {
+                    moovSize = channel.size() - position;
+                }
+                if (moovSize < 8) {
+                    return -1;
+                }
+                if (new String(header.array(), 4, 4, StandardCharsets.ISO_8859_1).equals("moov")) {
+                    moovStart = position;
+                    break;
+                }
+            }
+            if (moovStart < 0 || moovSize > MAX_MOOV_SIZE || moovStart + moovSize > channel.size()) {
+                return -1;
+            }
+            ByteBuffer moov = ByteBuffer.allocate((int) moovSize);
+            readFully(channel, moov, moovStart);
+            byte[] b = moov.array();
+
+            Item udta = Item.find(b, 8, b.length, "udta");
+            // meta has a version and flags before its children
+            Item meta = udta == null ? null : Item.find(b, udta.start + 8, udta.end, "meta");
+            List<Item> children = meta == null ? null : Item.parse(b, meta.start + 12, meta.end);
+            int i = children == null ? -1 : Item.indexOf(children, "ilst");
+            if (i < 0 || i + 1 >= children.size() || ! children.get(i + 1).type.equals("free")) {
+                return -1;
+            }
+            Item ilst = children.get(i);
+            Item free = children.get(i + 1);
+            List<Item> items = Item.parse(b, ilst.start + 8, ilst.end);
+            if (items == null) {
+                return -1;
+            }
+            for (SyncPlan.FieldChange change : changes) {
+                if (! applyIlst(items, change)) {
+                    return -1;
+                }
+            }
+            int length = 8;
+            for (Item item : items) {
+                length += item.data.length;
+            }
+            int room = free.end - ilst.start;
+            // What is left over has to hold a free atom's header
+            if (length != room && length + 8 > room) {
+                return -1;
+            }
+
+            ByteBuffer out = ByteBuffer.allocate(room);
+            out.putInt(length).put("ilst".getBytes(StandardCharsets.ISO_8859_1));
+            for (Item item : items) {
+                out.put(item.data);
+            }
+            if (length < room) {
+                out.putInt(room - length).put("free".getBytes(StandardCharsets.ISO_8859_1));
+            }
+            out.rewind();
+            long position = moovStart + ilst.start;
+            while (out.hasRemaining()) {
+                channel.write(out, position + out.position());
+            }
+            SyncMetrics.INSTANCE.inPlaceWrites.incrementAndGet();
+            return room;
+        }
+    }
+
+    // Replaces, adds or removes the item holding the field; false if that can't be done here
+    private static boolean applyIlst(List<Item> items, SyncPlan.FieldChange change) {
+        String type = itemType(change.field);
+        if (type == null) {
+            return false;
+        }
+        String value = change.newValue;
+        if (change.field == FieldKey.GENRE) {
+            // A numbered genre gives way to the named one
+            int gnre = Item.indexOf(items, "gnre");
+            if (gnre >= 0) {
+                items.remove(gnre);
+            }
+        }
+        int index = Item.indexOf(items, type);
+
+        Item item;
+        // Track and disc numbers are binary, each with its total
+        if (change.field == FieldKey.TRACK || change.field == FieldKey.DISC_NO || change.field == FieldKey.DISC_TOTAL) {
+            byte[] payload = index >= 0 ? items.get(index).payload() : new byte[type.equals("trkn") ? 8 : 6];
+            if (payload == null || payload.length < 6) {
+                return false;
+            }
+            int n;
+            try {
+                n = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            if (n < 0 || n > 0xFFFF) {
+                return false;
+            }
+            int offset = change.field == FieldKey.DISC_TOTAL ? 4 : 2;
+            payload[offset] = (byte) (n >> 8);
+            payload[offset + 1] = (byte) n;
+            item = Item.data(type, 0, payload);
+        } else if (value.isEmpty()) {
+            if (index >= 0) {
+                items.remove(index);
+            }
+            return true;
+        } else {
+            item = Item.data(type, 1, value.getBytes(StandardCharsets.UTF_8));
+        }
+        if (index >= 0) {
+            items.set(index, item);
+        } else {
+            items.add(item);
+        }
+        return true;
+    }
+
+    private static String itemType(FieldKey field) {
+        switch (field) {
+        case ALBUM:
+            return "\u00a9alb";
+        case ALBUM_ARTIST:
+            return "aART";
+        case ARTIST:
+            return "\u00a9ART";
+        case COMMENT:
+            return "\u00a9cmt";
+        case COMPOSER:
+            return "\u00a9wrt";
+        case DISC_NO:
+        case DISC_TOTAL:
+            return "disk";
+        case GENRE:
+            return "\u00a9gen";
+        case TITLE:
+            return "\u00a9nam";
+        case TRACK:
+            return "trkn";
+        default:
+            return null;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                break;
+            }
+        }
+    }
+
+    // Replaces, adds or removes the frame holding the field; false if that can't be done here
+    private static boolean apply(List<Frame> frames, SyncPlan.FieldChange change, int version) {
+        String id = frameId(change.field);
+        if (id == null) {
+            return false;
+        }
+        String value = change.newValue;
+        int index = -1;
+        for (int i = 0; i < frames.size(); i++) {
+            Frame frame = frames.get(i);
+            if (frame.id.equals(id) && (! id.equals("COMM") || frame.isPlainComment())) {
+                index = i;
+                break;
+            }
+        }
+        if (index >= 0 && ! frames.get(index).isPlain(version)) {
+            return false;
+        }
+
+        // Track and disc numbers share a frame with their totals, as n/total
+        if (change.field == FieldKey.TRACK || change.field == FieldKey.DISC_NO || change.field == FieldKey.DISC_TOTAL) {
+            if (value.isEmpty()) {
+                return false;
+            }
+            String[] parts = index >= 0 ? frames.get(index).text().split("/", 2) : new String[] {""};
+            if (change.field == FieldKey.DISC_TOTAL) {
+                value = (parts[0].isEmpty() ? "0" : parts[0]) + "/" + value;
+            } else if (parts.length > 1) {
+                value = value + "/" + parts[1];
+            }
+        }
+
+        if (value.isEmpty()) {
+            if (index >= 0) {
+                frames.remove(index);
+            }
+            return true;
+        }
+        Frame frame = id.equals("COMM") ? Frame.comment(value, version) : Frame.text(id, value, version);
+        if (index >= 0) {
+            frames.set(index, frame);
+        } else {
+            frames.add(frame);
+        }
+        return true;
+    }
+
+    private static String frameId(FieldKey field) {
+        switch (field) {
+        case ALBUM:
+            return "TALB";
+        case ALBUM_ARTIST:
+            return "TPE2";
+        case ARTIST:
+            return "TPE1";
+        case COMMENT:
+            return "COMM";
+        case COMPOSER:
+            return "TCOM";
+        case DISC_NO:
+        case DISC_TOTAL:
+            return "TPOS";
+        case GENRE:
+            return "TCON";
+        case TITLE:
+            return "TIT2";
+        case TRACK:
+            return "TRCK";
+        default:
+            return null;
+        }
+    }
+
+    // -1 if a byte has its top bit set
+    static int syncsafe(byte[] b, int offset) {
+        int value = 0;
+        for (int i = offset; i < offset + 4; i++) {
+            if ((b[i] & 0x80) != 0) {
+                return -1;
+            }
+            value = (value << 7) | b[i];
+        }
+        return value;
+    }
+
+    private static byte[] syncsafe(int value) {
+        return new byte[] {(byte) ((value >> 21) & 0x7F), (byte) ((value >> 14) & 0x7F), (byte) ((value >> 7) & 0x7F), (byte) (value & 0x7F)};
+    }
+
+    /**
+     * A frame of the tag, as its bytes including the frame header.
+     */
+    private static class Frame {
+        final String id;
+        final byte[] data;
+
+        Frame(String id, byte[] data) {
+            this.id = id;
+            this.data = data;
+        }
+
+        // null if the frames don't add up; the padding after them is dropped
+        static List<Frame> parse(byte[] body, int version) {
+            List<Frame> frames = new ArrayList<Frame>();
+            int position = 0;
+            while (position + HEADER_SIZE <= body.length && body[position] != 0) {
+                for (int i = position; i < position + 4; i++) {
+                    if (! (body[i] >= 'A' && body[i] <= 'Z' || body[i] >= '0' && body[i] <= '9')) {
+                        return null;
+                    }
+                }
+                int size = version == 4 ? syncsafe(body, position + 4) : ByteBuffer.wrap(body, position + 4, 4).getInt();
+                if (size < 0 || position + HEADER_SIZE + size > body.length) {
+                    return null;
+                }
+                byte[] data = new byte[HEADER_SIZE + size];
+                System.arraycopy(body, position, data, 0, data.length);
+                frames.add(new Frame(new String(body, position, 4, StandardCharsets.ISO_8859_1), data));
+                position += data.length;
+            }
+            for (int i = position; i < body.length; i++) {
+                if (body[i] != 0) {
+                    return null;
+                }
+            }
+            return frames;
+        }
+
+        // Whether the frame is neither compressed, encrypted, grouped nor unsynchronised
+        boolean isPlain(int version) {
+            return (data[9] & (version == 4 ? 0x4F : 0xE0)) == 0;
+        }
+
+        // The text of a text frame, up to the first null
+        String text() {
+            String s = decode(data[HEADER_SIZE], HEADER_SIZE + 1, data.length);
+            int end = s.indexOf('\0');
+            return end < 0 ? s : s.substring(0, end);
+        }
+
+        // Whether this is a comment frame without a description, which is where the comment goes
+        boolean isPlainComment() {
+            int start = HEADER_SIZE + 4;
+            if (data.length < start) {
+                return false;
+            }
+            String s = decode(data[HEADER_SIZE], start, data.length);
+            return s.isEmpty() || s.charAt(0) == '\0';
+        }
+
+        private String decode(byte encoding, int start, int end) {
+            if (start >= end) {
+                return "";
+            }
+            return new String(data, start, end - start, charset(encoding));
+        }
+
+        static Frame text(String id, String value, int version) {
+            byte encoding = encoding(value, version);
+            byte[] text = value.getBytes(charset(encoding));
+            ByteBuffer frame = header(id, 1 + text.length, version);
+            frame.put(encoding).put(text);
+            return new Frame(id, frame.array());
+        }
+
+        // A comment in English with no description
+        static Frame comment(String value, int version) {
+            byte encoding = encoding(value, version);
+            byte[] description = "".getBytes(charset(encoding));
+            byte[] terminator = new byte[encoding == 1 || encoding == 2 ? 2 : 1];
+            byte[] text = value.getBytes(charset(encoding));
+            ByteBuffer frame = header("COMM", 4 + description.length + terminator.length + text.length, version);
+            frame.put(encoding).put("eng".getBytes(StandardCharsets.ISO_8859_1)).put(description).put(terminator).put(text);
+            return new Frame("COMM", frame.array());
+        }
+
+        private static ByteBuffer header(String id, int size, int version) {
+            ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + size);
+            frame.put(id.getBytes(StandardCharsets.ISO_8859_1));
+            if (version == 4) {
+                frame.put(syncsafe(size));
+            } else {
+                frame.putInt(size);
+            }
+            frame.putShort((short) 0);
+            return frame;
+        }
+
+        // ISO-8859-1 if it will do, otherwise UTF-8 for 2.4 and UTF-16 for 2.3, which has no UTF-8
+        private static byte encoding(String value, int version) {
+            if (StandardCharsets.ISO_8859_1.newEncoder().canEncode(value)) {
+                return 0;
+            }
+            return (byte) (version == 4 ? 3 : 1);
+        }
+
+        private static Charset charset(byte encoding) {
+            switch (encoding) {
+            case 1:
+                return StandardCharsets.UTF_16;
+            case 2:
+                return StandardCharsets.UTF_16BE;
+            case 3:
+                return StandardCharsets.UTF_8;
+            default:
+                return StandardCharsets.ISO_8859_1;
+            }
+        }
+    }
+
+    /**
+     * An atom within the moov atom, as where it starts and ends in it, or, for an item of the ilst,
+     * as its bytes including the atom header.
+     */
+    private static class Item {
+        final String type;
+        final int start;
+        final int end;
+        final byte[] data;
+
+        Item(String type, int start, int end, byte[] data) {
+            this.type = type;
+            this.start = start;
+            this.end = end;
+            this.data = data;
+        }
+
+        // null if the atoms don't fill the range exactly
+        static List<Item> parse(byte[] b, int start, int end) {
+            List<Item> atoms = new ArrayList<Item>();
+            int position = start;
+            while (position + 8 <= end) {
+                int size = ByteBuffer.wrap(b, position, 4).getInt();
+                if (size < 8 || size > end - position) {
+                    return null;
+                }
+                byte[] data = new byte[size];
+                System.arraycopy(b, position, data, 0, size);
+                atoms.add(new Item(new String(b, position + 4, 4, StandardCharsets.ISO_8859_1), position, position + size, data));
+                position += size;
+            }
+            return position == end ? atoms : null;
+        }
+
+        static Item find(byte[] b, int start, int end, String type) {
+            List<Item> atoms = parse(b, start, end);
+            int i = atoms == null ? -1 : indexOf(atoms, type);
+            return i < 0 ? null : atoms.get(i);
+        }
+
+        static int indexOf(List<Item> atoms, String type) {
+            for (int i = 0; i < atoms.size(); i++) {
+                if (atoms.get(i).type.equals(type)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // An ilst item holding one data atom of the given type, 1 for UTF-8 text or 0 for binary
+        static Item data(String type, int dataType, byte[] payload) {
+            ByteBuffer item = ByteBuffer.allocate(24 + payload.length);
+            item.putInt(item.capacity()).put(type.getBytes(StandardCharsets.ISO_8859_1));
+            item.putInt(16 + payload.length).put("data".getBytes(StandardCharsets.ISO_8859_1));
+            item.putInt(dataType).putInt(0).put(payload);
+            return new Item(type, 0, item.capacity(), item.array());
+        }
+
+        // A copy of the value of an item holding just one data atom, or null
+        byte[] payload() {
+            if (data.length < 24 || ! new String(data, 12, 4, StandardCharsets.ISO_8859_1).equals("data")
+                    || ByteBuffer.wrap(data, 8, 4).getInt() != data.length - 8) {
+                return null;
+            }
+            byte[] payload = new byte[data.length - 24];
+            System.arraycopy(data, 24, payload, 0, payload.length);
+            return payload;
+        }
+    }
+}
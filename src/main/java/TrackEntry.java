@@ -0,0 +1,45 @@
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * What the index remembers about one audio file: where it is, the attributes used to tell
+ * whether it has changed, the key built from its tags, the values of the fields that are
+ * kept in sync, the length of the track, which helps to recognize a file whose tags have
+ * changed, and its bitrate, which tells the better of two copies of a track apart.
+ */
+class TrackEntry {
+    final String path;
+    final long size;
+    final long lastModified;
+    // null if the file was read but is not to be synced (e.g. a podcast)
+    final String key;
+    // Values of MusicFileSync.SYNC_FIELDS, in that order; null if the file has no key
+    final String[] fields;
+    // Length of the track in seconds, or 0 if not known
+    final int duration;
+    // In kbit/s, or 0 if not known
+    final int bitrate;
+
+    TrackEntry(String path, long size, long lastModified, String key, String[] fields, int duration, int bitrate) {
+        this.path = path;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.key = key;
+        this.fields = fields;
+        this.duration = duration;
+        this.bitrate = bitrate;
+    }
+
+    TrackEntry(Path path, BasicFileAttributes attrs, String key, String[] fields, int duration, int bitrate) {
+        this(path.toString(), attrs.size(), attrs.lastModifiedTime().toMillis(), key, fields, duration, bitrate);
+    }
+
+    boolean isUnchanged(BasicFileAttributes attrs) {
+        return size == attrs.size() && lastModified == attrs.lastModifiedTime().toMillis();
+    }
+
+    Path toPath() {
+        return FileSystems.getDefault().getPath(path);
+    }
+}
@@ -0,0 +1,87 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Persistent record of every audio file found in a set of directory trees, keyed by path. A scan
+ * consults the index of the previous run and only reads the tags of files whose size or
+ * modification time has changed.
+ *
+ * An index is either built up by a scan or loaded from an IndexFile, in which case entries are
+ * decoded from the mapped file only as they are asked for.
+ */
+class TrackIndex {
+    private final Map<String, TrackEntry> entries = new LinkedHashMap<String, TrackEntry>();
+    private final IndexFile file;
+
+    TrackIndex() {
+        this(null);
+    }
+
+    private TrackIndex(IndexFile file) {
+        this.file = file;
+    }
+
+    // Returns the entry for the file if it hasn't changed since it was indexed, otherwise null.
+    TrackEntry get(Path path, BasicFileAttributes attrs) {
+        TrackEntry entry = file != null ? file.find(path.toString()) : entries.get(path.toString());
+        return entry != null && entry.isUnchanged(attrs) ? entry : null;
+    }
+
+    void add(TrackEntry entry) {
+        if (file != null) {
+            throw new IllegalStateException("Index loaded from file is read-only");
+        }
+        entries.put(entry.path, entry);
+    }
+
+    // The entries of an index loaded from a file are decoded one at a time as they are iterated
+    Collection<TrackEntry> entries() {
+        if (file == null) {
+            return entries.values();
+        }
+        return new AbstractList<TrackEntry>() {
+            @Override
+            public TrackEntry get(int i) {
+                return file.decode(i);
+            }
+
+            @Override
+            public int size() {
+                return file.size();
+            }
+        };
+    }
+
+    int size() {
+        return file != null ? file.size() : entries.size();
+    }
+
+    // Opens an index written by save(); a missing or unreadable file gives an empty index.
+    static TrackIndex load(Path indexPath) throws IOException {
+        if (! Files.exists(indexPath) && ! Files.exists(indexPath.resolveSibling(indexPath.getFileName() + ".new"))) {
+            return new TrackIndex();
+        }
+        System.out.format("Reading from file %s\n", indexPath);
+        try {
+            return open(indexPath);
+        } catch (IOException e) {
+            System.out.format("Ignoring index %s (%s)\n", indexPath, e.getMessage());
+            return new TrackIndex();
+        }
+    }
+
+    // Opens an index written by save(), failing if it can't be read
+    static TrackIndex open(Path indexPath) throws IOException {
+        return new TrackIndex(IndexFile.open(indexPath));
+    }
+
+    void save(Path indexPath) throws IOException {
+        IndexFile.write(entries(), indexPath);
+    }
+}
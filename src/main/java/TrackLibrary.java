@@ -0,0 +1,64 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * A music library whose tracks are reconciled with the tags of their files. Fields are named as
+ * in SyncITunesAndFiles.FIELDS, after the iTunes COM properties.
+ *
+ * Tracks are handed out as immutable records holding every field asked for, read up front, so
+ * that comparing them with the files costs no further calls into the library. A filter can
+ * pass over tracks before their fields are read.
+ */
+interface TrackLibrary extends Closeable {
+    final class Track {
+        // Hex string that identifies the track in the library for good; null if not known
+        final String persistentId;
+        // When the track was last changed in the library, in milliseconds; 0 if not known
+        final long modified;
+        // Path of the file
+        final String location;
+        // What the library needs to write to the track; null for a read-only library
+        final Object source;
+        private final Map<String, String> values;
+
+        Track(String persistentId, long modified, String location, Map<String, String> values, Object source) {
+            this.persistentId = persistentId;
+            this.modified = modified;
+            this.location = location;
+            this.values = Collections.unmodifiableMap(values);
+            this.source = source;
+        }
+
+        // Numbers are returned as strings; null if the field isn't set
+        String get(String field) {
+            if (! values.containsKey(field)) {
+                throw new InternalError("Field not read from library: " + field);
+            }
+            return values.get(field);
+        }
+
+        Track with(String field, String value, long modified) {
+            Map<String, String> newValues = new HashMap<String, String>(values);
+            newValues.put(field, value);
+            return new Track(persistentId, modified, location, newValues, source);
+        }
+    }
+
+    interface Filter {
+        boolean accept(String persistentId, long modified, String location);
+    }
+
+    Filter ALL = (persistentId, modified, location) -> true;
+
+    boolean isWritable();
+
+    // Calls the action with each track of the library that is a local file and passes the filter, in turn
+    void forEachTrack(Filter filter, Consumer<Track> action) throws IOException;
+
+    // Writes the value to the library, returning the track as it now is. Only for a writable library.
+    Track set(Track track, String field, String value);
+}
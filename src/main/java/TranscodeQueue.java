@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs transcodes on a fixed number of threads so that the caller can go on with tag
+ * updates while they are in flight. Call finish() to wait for the queue to drain and print a
+ * summary of the run.
+ */
+class TranscodeQueue {
+    private final Transcoder transcoder;
+    private final ExecutorService executor;
+    private final int threads;
+    private final Set<Path> createdDirs = new HashSet<Path>();
+    private final AtomicInteger submitted = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final long startTime = System.nanoTime();
+    private final SyncMetrics metrics = SyncMetrics.INSTANCE;
+
+    TranscodeQueue(Transcoder transcoder, int threads) {
+        this.transcoder = transcoder;
+        this.threads = threads;
+        this.executor = Executors.newFixedThreadPool(threads);
+    }
+
+    void submit(Path srcPath, Path dstPath, Runnable onSuccess) {
+        submit(srcPath, Collections.singletonList(dstPath), onSuccess);
+    }
+
+    // Directories are created here, on the submitting thread, so each one is only created once
+    // and always exists before any job that writes into it starts. onSuccess is run on the
+    // transcoding thread once every file is written. Files transcoded from the same source
+    // together count as one transcode.
+    void submit(final Path srcPath, final List<Path> dstPaths, final Runnable onSuccess) {
+        submitted.incrementAndGet();
+        for (Path dstPath : dstPaths) {
+            Path dir = dstPath.getParent();
+            if (createdDirs.add(dir)) {
+                try {
+                    Files.createDirectories(dir);
+                } catch (IOException e) {
+                    failed.incrementAndGet();
+                    metrics.transcodeFailures.incrementAndGet();
+                    System.out.format("Error creating directory: %s\n", e);
+                    return;
+                }
+            }
+        }
+        executor.execute(() -> transcode(srcPath, dstPaths, onSuccess));
+    }
+
+    private void transcode(Path srcPath, List<Path> dstPaths, Runnable onSuccess) {
+        try {
+            System.out.format("Transcoding: %s -> %s\n", srcPath, dstPaths.size() == 1 ? dstPaths.get(0) : dstPaths);
+            long start = System.nanoTime();
+            transcoder.transcode(srcPath, dstPaths);
+            metrics.transcode.since(start);
+            completed.incrementAndGet();
+            metrics.transcodes.incrementAndGet();
+            long size = 0;
+            for (Path dstPath : dstPaths) {
+                size += Files.size(dstPath);
+            }
+            bytesWritten.addAndGet(size);
+            metrics.bytesWritten.addAndGet(size);
+            onSuccess.run();
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            metrics.transcodeFailures.incrementAndGet();
+            System.out.format("Error copying file: %s\n", e.getMessage());
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            metrics.transcodeFailures.incrementAndGet();
+            System.out.format("Error copying file: %s\n", e);
+            e.printStackTrace();
+        }
+    }
+
+    // Waits for all submitted transcodes to finish and reports how the run went.
+    void finish() throws InterruptedException {
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        if (submitted.get() == 0) {
+            return;
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.format("Transcoded %d of %d files (%d failed) on %d threads in %.1fs: %.2f files/s, %.2f MB/s written\n",
+                completed.get(), submitted.get(), failed.get(), threads, seconds,
+                completed.get() / seconds, bytesWritten.get() / seconds / (1024 * 1024));
+    }
+}
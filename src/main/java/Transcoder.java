@@ -0,0 +1,20 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Converts one source audio file into a destination file. Implementations must be safe to call
+ * from several threads at once.
+ */
+interface Transcoder {
+    // Throws an IOException describing what went wrong if the conversion fails.
+    void transcode(Path srcPath, Path dstPath) throws IOException, InterruptedException;
+
+    // Writes several destination files from the one source, decoding it only once where the
+    // implementation can. Either every file is written or an IOException is thrown.
+    default void transcode(Path srcPath, List<Path> dstPaths) throws IOException, InterruptedException {
+        for (Path dstPath : dstPaths) {
+            transcode(srcPath, dstPath);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides which files of a source tree are read at all, from their paths and attributes alone,
+ * so that files that aren't wanted are never opened. Directories to skip are pruned as the walk
+ * reaches them, without looking inside.
+ *
+ * Include and exclude globs are matched against the path relative to the root of the tree, e.g.
+ * "Classical/**" or "**.m4a"; if there are includes a file must match one. Directories are
+ * skipped by name, which may also be a glob, e.g. "Podcasts". Sizes are in bytes and dates are
+ * days, e.g. 2014-01-31, in local time; a file modified on the "before" day is left out.
+ */
+class WalkFilter {
+    static final WalkFilter ALL = new WalkFilter();
+
+    private static final FileSystem FS = FileSystems.getDefault();
+
+    private final List<PathMatcher> includes = new ArrayList<PathMatcher>();
+    private final List<PathMatcher> excludes = new ArrayList<PathMatcher>();
+    private final List<PathMatcher> skippedDirs = new ArrayList<PathMatcher>();
+    private long minSize = 0;
+    private long maxSize = Long.MAX_VALUE;
+    private long modifiedAfter = Long.MIN_VALUE;
+    private long modifiedBefore = Long.MAX_VALUE;
+
+    WalkFilter() {
+    }
+
+    // The dates may be null; throws an IllegalArgumentException for a bad glob or date
+    WalkFilter(List<String> includes, List<String> excludes, List<String> skippedDirs, long minSize, long maxSize,
+            String modifiedAfter, String modifiedBefore) {
+        for (String glob : includes) {
+            this.includes.add(FS.getPathMatcher("glob:" + glob));
+        }
+        for (String glob : excludes) {
+            this.excludes.add(FS.getPathMatcher("glob:" + glob));
+        }
+        for (String glob : skippedDirs) {
+            this.skippedDirs.add(FS.getPathMatcher("glob:" + glob));
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        if (modifiedAfter != null) {
+            this.modifiedAfter = startOfDay(modifiedAfter);
+        }
+        if (modifiedBefore != null) {
+            this.modifiedBefore = startOfDay(modifiedBefore);
+        }
+    }
+
+    private static long startOfDay(String date) {
+        try {
+            return LocalDate.parse(date).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Date must be yyyy-mm-dd: " + date, e);
+        }
+    }
+
+    // Whether the walk should leave out the directory and everything under it
+    boolean skipDirectory(Path root, Path dir) {
+        Path name = dir.getFileName();
+        if (name == null || dir.equals(root)) {
+            return false;
+        }
+        for (PathMatcher matcher : skippedDirs) {
+            if (matcher.matches(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Whether the file is an audio file that passes the filter
+    boolean accepts(Path root, Path path, BasicFileAttributes attrs) {
+        if (! MusicFileSync.isAudioFile(path)) {
+            return false;
+        }
+        if (attrs.size() < minSize || attrs.size() > maxSize) {
+            return false;
+        }
+        long modified = attrs.lastModifiedTime().toMillis();
+        if (modified < modifiedAfter || modified >= modifiedBefore) {
+            return false;
+        }
+        if (includes.isEmpty() && excludes.isEmpty()) {
+            return true;
+        }
+        Path relPath = root.relativize(path);
+        for (PathMatcher matcher : excludes) {
+            if (matcher.matches(relPath)) {
+                return false;
+            }
+        }
+        if (includes.isEmpty()) {
+            return true;
+        }
+        for (PathMatcher matcher : includes) {
+            if (matcher.matches(relPath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,64 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ITunesXmlLibraryTest {
+    private static final List<String> FIELDS = Arrays.asList("album", "artist", "discNumber", "discCount", "name", "trackNumber");
+
+    private static Path fixture() throws Exception {
+        return Paths.get(ITunesXmlLibraryTest.class.getResource("/library.xml").toURI());
+    }
+
+    private static List<TrackLibrary.Track> read(TrackLibrary.Filter filter) throws Exception {
+        List<TrackLibrary.Track> tracks = new ArrayList<TrackLibrary.Track>();
+        new ITunesXmlLibrary(fixture(), FIELDS).forEachTrack(filter, tracks::add);
+        return tracks;
+    }
+
+    @Test
+    public void readsTheLocalTracksAfterNestedValues() throws Exception {
+        List<TrackLibrary.Track> tracks = read(TrackLibrary.ALL);
+        assertEquals(2, tracks.size());
+
+        TrackLibrary.Track first = tracks.get(0);
+        assertEquals("0123456789ABCDEF", first.persistentId);
+        assertEquals(1425211200000L, first.modified);
+        assertEquals("C:/Music/A B/C+D.mp3", first.location);
+        assertEquals("Album One", first.get("album"));
+        assertEquals("C+D", first.get("name"));
+        assertEquals("3", first.get("trackNumber"));
+        // iTunes leaves out numbers that aren't set
+        assertEquals("0", first.get("discNumber"));
+        assertEquals("0", first.get("discCount"));
+
+        TrackLibrary.Track second = tracks.get(1);
+        assertEquals("/Users/me/Music/Caf\u00e9.m4a", second.location);
+        assertEquals("Caf\u00e9", second.get("name"));
+        assertEquals("2", second.get("discNumber"));
+        assertNull(second.get("album"));
+        assertEquals(0, second.modified);
+    }
+
+    @Test
+    public void passesOverTracksTheFilterRejects() throws Exception {
+        List<TrackLibrary.Track> tracks = read((persistentId, modified, location) -> location.endsWith(".m4a"));
+        assertEquals(1, tracks.size());
+        assertEquals("FEDCBA9876543210", tracks.get(0).persistentId);
+    }
+
+    @Test
+    public void decodesFileUrls() {
+        assertEquals("C:/Music/A B/C+D.mp3", ITunesXmlLibrary.toPath("file://localhost/C:/Music/A%20B/C+D.mp3"));
+        assertEquals("/Volumes/Music/100%/x.mp3", ITunesXmlLibrary.toPath("file:///Volumes/Music/100%25/x.mp3"));
+        assertEquals("/Users/me/Caf\u00e9.mp3", ITunesXmlLibrary.toPath("file://localhost/Users/me/Caf%C3%A9.mp3"));
+        assertNull(ITunesXmlLibrary.toPath("http://example.com/stream.mp3"));
+        assertNull(ITunesXmlLibrary.toPath(null));
+    }
+}